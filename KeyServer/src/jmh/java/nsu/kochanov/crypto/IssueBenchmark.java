@@ -0,0 +1,59 @@
+package nsu.kochanov.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выпуск сертификата и кодирование в PEM — всё, что остаётся на запрос,
+ * когда ключевая пара уже взята из запаса.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IssueBenchmark {
+    @Param({"rsa-8192", "rsa-2048", "ec-p256", "ed25519"})
+    public String caProfile;
+
+    private KeyPair ca;
+    private KeyPair subject;
+    private X509Certificate certificate;
+    private CertificateIssuer issuer;
+
+    @Setup
+    public void setUp() throws Exception {
+        SecureRandom random = new SecureRandom();
+        ca = KeyProfile.parse(caProfile).generate(random);
+        subject = KeyProfile.EC_P256.generate(random);
+        issuer = new CertificateIssuer("CN=Bench CA", ca.getPrivate());
+        certificate = issueCertificate();
+    }
+
+    /** Разовый выпуск: подписант и провайдерные объекты создаются на каждый вызов. */
+    @Benchmark
+    public X509Certificate issueCertificate() {
+        return CertUtils.issueCertificate("CN=Bench CA", "CN=alice", subject, ca.getPrivate());
+    }
+
+    /** Выпуск переиспользуемым CA, как в сервере. */
+    @Benchmark
+    public X509Certificate issueWithIssuer() {
+        return issuer.issue("alice", subject.getPublic());
+    }
+
+    @Benchmark
+    public String privateKeyToPem() throws Exception {
+        return PemUtils.toPem(ca.getPrivate());
+    }
+
+    @Benchmark
+    public String certificateToPem() throws Exception {
+        return PemUtils.toPem(certificate);
+    }
+}
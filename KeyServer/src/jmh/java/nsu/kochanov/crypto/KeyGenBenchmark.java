@@ -0,0 +1,35 @@
+package nsu.kochanov.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Генерация ключевой пары для каждого профиля. RSA-8192 занимает секунды, поэтому
+ * режим — отдельные замеры одиночных вызовов, а не пропускная способность.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class KeyGenBenchmark {
+    @Param({"rsa-2048", "rsa-3072", "rsa-4096", "rsa-8192", "ec-p256", "ec-p384", "ed25519"})
+    public String profile;
+
+    private KeyProfile keyProfile;
+    private final SecureRandom random = new SecureRandom();
+
+    @Setup
+    public void setUp() {
+        keyProfile = KeyProfile.parse(profile);
+    }
+
+    @Benchmark
+    public KeyPair generate() throws Exception {
+        return keyProfile.generate(random);
+    }
+}
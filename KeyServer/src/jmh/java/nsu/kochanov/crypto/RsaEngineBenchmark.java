@@ -0,0 +1,42 @@
+package nsu.kochanov.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка одиночной генерации RSA на простаивающей машине: генератор JDK против
+ * параллельного поиска простых на всех ядрах.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RsaEngineBenchmark {
+    @Param({"rsa-2048", "rsa-4096", "rsa-8192"})
+    public String profile;
+
+    @Param({"jdk", "parallel"})
+    public String engine;
+
+    private KeyProfile keyProfile;
+    private ParallelRsaKeyGenerator parallel;
+    private final SecureRandom random = new SecureRandom();
+
+    @Setup
+    public void setUp() {
+        keyProfile = KeyProfile.parse(profile);
+        parallel = new ParallelRsaKeyGenerator(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public KeyPair generate() throws Exception {
+        return engine.equals("jdk")
+                ? keyProfile.generate(random)
+                : parallel.generate(keyProfile.rsaBits(), random, parallel.parallelism());
+    }
+}
@@ -0,0 +1,76 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Пропускная способность журнала выпуска и хранилища при одновременной записи из многих
+ * нитей: каждая операция ждёт, пока её запись окажется на диске, так что число операций
+ * в секунду ограничено числом fsync и тем, сколько записей делит один fsync.
+ * Сравните результаты при {@code -t 1} и {@code -t 8}: при групповом сбросе
+ * пропускная способность растёт с числом нитей, а не упирается в один fsync на запись.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class JournalBenchmark {
+    private Path dir;
+    private IssuanceJournal journal;
+    private ResultStore store;
+    private Result result;
+    private final AtomicLong names = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal-bench");
+        journal = IssuanceJournal.open(dir, new Metrics());
+        store = ResultStore.open(dir);
+        byte[] key = new byte[3300]; // порядок размера PEM ключа RSA-4096
+        byte[] cert = new byte[1500];
+        Arrays.fill(key, (byte) 'k');
+        Arrays.fill(cert, (byte) 'c');
+        result = Result.of(key, cert);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /** Запрос и завершение генерации в журнале, с ожиданием сброса на диск. */
+    @Benchmark
+    public void journalDurable() throws InterruptedException, IOException {
+        String name = "bench-" + names.incrementAndGet();
+        journal.requested(name);
+        journal.awaitDurable(journal.done(name));
+    }
+
+    /** То, что делает IO-нить: запись в буфер журнала без ожидания диска. */
+    @Benchmark
+    public long journalAsync() {
+        return journal.requested("bench-" + names.incrementAndGet());
+    }
+
+    /** Готовая пара в хранилище; append возвращается после fsync. */
+    @Benchmark
+    public void storeAppend() throws IOException {
+        store.append("bench-" + names.incrementAndGet(), result);
+    }
+}
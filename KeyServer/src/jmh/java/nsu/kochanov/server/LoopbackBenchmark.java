@@ -0,0 +1,110 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.crypto.PemUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сервер целиком на loopback: много одновременных клиентов в стиле KeyClient
+ * (соединение, имя, чтение ответа до закрытия). SampleTime даёт перцентили задержки,
+ * Throughput — запросы в секунду. Профиль ec-p256, чтобы мерить IO и кэш, а не RSA.
+ * Параметр mode сравнивает селекторный {@link KeyServer} с {@link VirtualThreadServer}
+ * (ioThreads во втором режиме не используется).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(64)
+@Fork(1)
+public class LoopbackBenchmark {
+    /** repeat — имена из небольшого набора (попадания в кэш), unique — каждый раз новое имя. */
+    @Param({"repeat", "unique"})
+    public String names;
+
+    @Param({"1", "4"})
+    public int ioThreads;
+
+    @Param({"nio", "virtual"})
+    public String mode;
+
+    private final AtomicLong unique = new AtomicLong();
+    private int port;
+
+    @Setup
+    public void setUp() throws Exception {
+        SecureRandom random = new SecureRandom();
+        Path caKey = Files.createTempFile("bench-ca", ".key");
+        PemUtils.writePrivateKey(caKey, KeyProfile.EC_P256.generate(random).getPrivate());
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        config.ioThreads = ioThreads;
+        config.defaultProfile = KeyProfile.EC_P256;
+        KeyStoreService ks = KeyStoreService.load(caKey, "CN=Bench CA");
+        Server server = mode.equals("virtual") ? new VirtualThreadServer(config, ks)::start : new KeyServer(config, ks)::start;
+        Thread acceptor = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "bench-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        awaitListening();
+    }
+
+    private interface Server {
+        void start() throws IOException;
+    }
+
+    private void awaitListening() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", port)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    @Benchmark
+    public int request() throws IOException {
+        String name = names.equals("repeat")
+                ? "user" + ThreadLocalRandom.current().nextInt(100)
+                : "user-" + unique.incrementAndGet();
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer send = ByteBuffer.allocate(nameBytes.length + 1).put(nameBytes).put((byte) 0).flip();
+            while (send.hasRemaining()) ch.write(send);
+            ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
+            int total = 0;
+            int r;
+            while ((r = ch.read(buf)) != -1) {
+                total += r;
+                buf.clear();
+            }
+            return total;
+        }
+    }
+}
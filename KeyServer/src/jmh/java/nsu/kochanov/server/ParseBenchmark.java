@@ -0,0 +1,44 @@
+package nsu.kochanov.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск нулевого терминатора и выделение имён из буфера чтения —
+ * то, что IO-нить делает на каждое пришедшее имя.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"8", "64", "1024"})
+    public int nameLength;
+
+    private ByteBuffer buf;
+    private int names;
+
+    @Setup
+    public void setUp() {
+        buf = ByteBuffer.allocateDirect(8192);
+        names = buf.capacity() / (nameLength + 1);
+        for (int i = 0; i < names; i++) {
+            for (int j = 0; j < nameLength; j++) buf.put((byte) ('a' + (i + j) % 26));
+            buf.put((byte) 0);
+        }
+        buf.flip();
+    }
+
+    /** Время на весь буфер; делите на число имён в нём (8192 / (nameLength + 1)). */
+    @Benchmark
+    public void parseBuffer(Blackhole bh) throws Exception {
+        ByteBuffer b = buf.duplicate();
+        String name;
+        while ((name = KeyServer.nextName(b)) != null) bh.consume(name);
+    }
+}
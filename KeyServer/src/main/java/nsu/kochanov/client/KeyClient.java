@@ -1,43 +1,87 @@
 package nsu.kochanov.client;
 
+import nsu.kochanov.server.Protocol;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class KeyClient {
     private static final Logger LOG = Logger.getLogger(KeyClient.class.getName());
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
     public static void main(String[] args) throws Exception {
         String host = "127.0.0.1";
         int port = 9000;
         String name = null;
+        List<String> names = null; // несколько имён по одному соединению
+        boolean batch = false; // отправить --names одним пакетом (Protocol.BATCH)
+        String profile = null; // профиль ключа, если не тот, что по умолчанию на сервере
+        String issuer = null;  // CA из хранилища сервера, если не тот, что по умолчанию
         int delay = 0; // seconds
         boolean crash = false;
         Path outDir = Path.of(".");
+        LoadGenerator.Settings load = new LoadGenerator.Settings(); // режим нагрузки, если задан --load
 
         for (int i = 0; i < args.length - 1; i++) {
             switch (args[i]) {
                 case "--host" -> host = args[++i];
                 case "--port" -> port = Integer.parseInt(args[++i]);
                 case "--name" -> name = args[++i];
+                case "--names" -> names = List.of(args[++i].split(","));
+                case "--batch" -> batch = Boolean.parseBoolean(args[++i]);
                 case "--delay" -> delay = Integer.parseInt(args[++i]);
                 case "--crash" -> crash = Boolean.parseBoolean(args[++i]);
                 case "--out" -> outDir = Path.of(args[++i]);
+                case "--profile" -> profile = args[++i];
+                case "--issuer" -> issuer = args[++i];
+                case "--load" -> load.requests = Integer.parseInt(args[++i]);
+                case "--concurrency" -> load.concurrency = Integer.parseInt(args[++i]);
+                case "--rate" -> load.rate = Double.parseDouble(args[++i]);
+                case "--dist" -> load.distribution = args[++i];
+                case "--keys" -> load.keys = Integer.parseInt(args[++i]);
+                case "--zipf-s" -> load.zipfExponent = Double.parseDouble(args[++i]);
+                case "--crash-ratio" -> load.crashRatio = Double.parseDouble(args[++i]);
+                case "--delay-ratio" -> load.delayRatio = Double.parseDouble(args[++i]);
                 default -> {}
             }
         }
-        if (name == null) throw new IllegalArgumentException("--name required");
+        String options = (profile == null ? "" : Protocol.OPTION_SEPARATOR + "profile=" + profile)
+                + (issuer == null ? "" : Protocol.OPTION_SEPARATOR + "issuer=" + issuer);
+        if (load.requests > 0) {
+            load.host = host;
+            load.port = port;
+            load.options = options;
+            if (delay > 0) load.delaySeconds = delay;
+            new LoadGenerator(load).run();
+            return;
+        }
+        if (name == null && names == null) throw new IllegalArgumentException("--name or --names required");
         Files.createDirectories(outDir);
 
+        if (names != null) {
+            fetchPipelined(host, port, names, options, outDir, batch);
+            return;
+        }
+
         try (SocketChannel ch = SocketChannel.open()) {
             LOG.info("Connecting to " + host + ":" + port);
             ch.connect(new InetSocketAddress(host, port));
             ch.configureBlocking(true);
-            byte[] nameBytes = name.getBytes();
+            byte[] nameBytes = (name + options).getBytes(StandardCharsets.US_ASCII);
             ByteBuffer send = ByteBuffer.allocate(nameBytes.length + 1);
             send.put(nameBytes).put((byte)0).flip();
             while (send.hasRemaining()) ch.write(send);
@@ -49,38 +93,140 @@ public final class KeyClient {
             }
             if (delay > 0) Thread.sleep(delay * 1000L);
 
-            // читаем весь ответ до закрытия сервером
-            ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
-            while (true) {
-                int r = ch.read(buf);
-                if (r == -1) break;
-                if (!buf.hasRemaining()) {
-                    ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
-                    buf.flip();
-                    bigger.put(buf);
-                    buf = bigger;
+            // Читаем ответ до закрытия сервером и сразу раскладываем по файлам:
+            // ключ — до заголовка сертификата, сертификат — после
+            Path keyFile = outDir.resolve(name + ".key");
+            Path crtFile = outDir.resolve(name + ".crt");
+            try (FileChannel key = create(keyFile); FileChannel crt = create(crtFile)) {
+                PemSplitter splitter = new PemSplitter(key, crt);
+                ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+                while (ch.read(buf) != -1) {
+                    splitter.write(buf.flip());
+                    buf.clear();
                 }
+                splitter.finish();
+            } catch (IOException e) {
+                Files.deleteIfExists(keyFile);
+                Files.deleteIfExists(crtFile);
+                throw e;
             }
-            buf.flip();
-            byte[] data = new byte[buf.remaining()];
-            buf.get(data);
-            String payload = new String(data);
+            LOG.info("Saved: " + keyFile + " and " + crtFile);
+        }
+    }
 
-            // Отделим приватный ключ и сертификат по заголовкам PEM
-            int keyStart = payload.indexOf("-----BEGIN");
-            int certStart = payload.indexOf("-----BEGIN CERTIFICATE-----");
-            if (keyStart == -1 || certStart == -1) throw new IOException("Invalid payload");
-            String keyPem = payload.substring(keyStart, certStart);
-            String certPem = payload.substring(certStart);
+    private static FileChannel create(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
 
-            Path keyFile = outDir.resolve(name + ".key");
-            Path crtFile = outDir.resolve(name + ".crt");
-            Files.writeString(keyFile, keyPem);
-            Files.writeString(crtFile, certPem);
-            LOG.info("Saved: " + keyFile + " and " + crtFile);
+    /** Дочитывает из канала, пока в buf не окажется хотя бы n байт. */
+    private static void fill(SocketChannel ch, ByteBuffer buf, int n) throws IOException {
+        if (buf.remaining() >= n) return;
+        buf.compact();
+        try {
+            while (buf.position() < n) {
+                if (ch.read(buf) == -1) throw new EOFException("Connection closed in the middle of a frame");
+            }
+        } finally {
+            buf.flip();
         }
     }
-}
 
+    /** Переносит n байт тела кадра (сначала из buf, затем из канала) в out; null — пропустить. */
+    private static void copy(SocketChannel ch, ByteBuffer buf, long n, FileChannel out) throws IOException {
+        while (n > 0) {
+            if (!buf.hasRemaining()) fill(ch, buf, 1);
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + (int) Math.min(n, part.remaining()));
+            int len = part.remaining();
+            if (out != null) {
+                while (part.hasRemaining()) out.write(part);
+            }
+            buf.position(buf.position() + len);
+            n -= len;
+        }
+    }
+
+    /**
+     * Все имена отправляются по одному соединению, ответы приходят кадрами в порядке готовности.
+     * В пакетном режиме число имён объявляется заранее, и сервер сам закрывает соединение после последнего кадра.
+     * <p>
+     * Имена пишет отдельная нить, пока эта читает ответы. Сервер перестаёт читать соединение,
+     * у которого много незавершённых запросов, пока клиент не заберёт ответы: если сначала
+     * отправить все имена, а потом читать, обе стороны встанут на полных буферах сокета.
+     */
+    static void fetchPipelined(String host, int port, List<String> names, String options, Path outDir,
+                               boolean batch) throws IOException {
+        try (ExecutorService sender = Executors.newVirtualThreadPerTaskExecutor();
+             SocketChannel ch = SocketChannel.open()) {
+            LOG.info("Connecting to " + host + ":" + port);
+            ch.connect(new InetSocketAddress(host, port));
+            ch.configureBlocking(true);
+            // Если чтение оборвётся, закрытие канала разбудит и пишущую нить
+            Future<?> sent = sender.submit(() -> {
+                send(ch, names, options, batch);
+                return null;
+            });
+
+            // Один буфер на всё соединение: тела кадров идут из него прямо в файлы
+            ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE).flip();
+            for (int i = 0; i < names.size(); i++) {
+                fill(ch, buf, Protocol.FRAME_HEADER_LEN);
+                int id = buf.getInt();
+                byte status = buf.get();
+                int keyLen = buf.getInt();
+                int certLen = buf.getInt();
+                if (id < 0 || id >= names.size()) throw new IOException("Unexpected request id " + id);
+                String n = names.get(id);
+                if (status != Protocol.STATUS_OK) {
+                    copy(ch, buf, (long) keyLen + certLen, null);
+                    if (status == Protocol.STATUS_BUSY) LOG.warning("Server is busy, '" + n + "' was not queued");
+                    else LOG.warning("Server failed to issue '" + n + "'");
+                    continue;
+                }
+                Path keyFile = outDir.resolve(n + ".key");
+                Path crtFile = outDir.resolve(n + ".crt");
+                try (FileChannel key = create(keyFile); FileChannel crt = create(crtFile)) {
+                    copy(ch, buf, keyLen, key);
+                    copy(ch, buf, certLen, crt);
+                }
+                LOG.info("Saved: " + keyFile + " and " + crtFile);
+            }
+            try {
+                sent.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending names", e);
+            }
+        }
+    }
 
+    /** Пишет заголовок режима и имена буфером фиксированного размера, а не одним массивом на все имена. */
+    private static void send(SocketChannel ch, List<String> names, String options, boolean batch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        if (batch) buf.put(Protocol.BATCH).putInt(names.size());
+        else buf.put(Protocol.PIPELINED);
+        for (String n : names) {
+            byte[] request = (n + options).getBytes(StandardCharsets.US_ASCII);
+            if (buf.remaining() < request.length + 1) {
+                writeFully(ch, buf.flip());
+                buf.clear();
+            }
+            if (buf.remaining() < request.length + 1) {
+                writeFully(ch, ByteBuffer.wrap(request)); // имя длиннее буфера — сервер его всё равно отвергнет
+                buf.put((byte) 0);
+            } else {
+                buf.put(request).put((byte) 0);
+            }
+        }
+        writeFully(ch, buf.flip());
+        // больше запросов не будет: сервер закроет соединение после последнего ответа
+        if (!batch) ch.shutdownOutput();
+        LOG.info("Sent " + names.size() + " names");
+    }
 
+    private static void writeFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+}
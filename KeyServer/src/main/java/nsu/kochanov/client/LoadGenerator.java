@@ -0,0 +1,184 @@
+package nsu.kochanov.client;
+
+import nsu.kochanov.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Генератор нагрузки для KeyClient ({@code --load N}): N запросов в обычном режиме протокола
+ * (соединение, имя, ответ до закрытия), каждый — в своей виртуальной нити, не больше
+ * {@code concurrency} открытых соединений одновременно.
+ * <p>
+ * Запросы запускаются по расписанию с заданной частотой (открытая модель нагрузки): задержка
+ * считается от запланированного момента старта, а не от фактического, поэтому очередь перед
+ * перегруженным сервером попадает в перцентили, а не прячется. Имена — уникальные или
+ * повторяющиеся по закону Ципфа. Часть клиентов можно «ронять» сразу после отправки имени
+ * или заставлять ждать перед чтением ответа, как {@code --crash} и {@code --delay}.
+ * <p>
+ * Только для локального сервера: хост должен быть loopback-адресом.
+ */
+final class LoadGenerator {
+    private static final Logger LOG = Logger.getLogger(LoadGenerator.class.getName());
+
+    /** Параметры прогона; заполняются из аргументов KeyClient. */
+    static final class Settings {
+        String host = "127.0.0.1";
+        int port = 9000;
+        String options = "";       // параметры запроса после имени (профиль и т.п.)
+        int requests;
+        int concurrency = 1000;
+        double rate;               // запросов в секунду, 0 — без ограничения
+        String distribution = "unique";
+        int keys = 10_000;         // размер множества имён для zipf
+        double zipfExponent = 1.0;
+        double crashRatio;
+        double delayRatio;
+        int delaySeconds = 1;
+    }
+
+    private final Settings s;
+    private final InetSocketAddress address;
+    private final double[] zipfCdf; // null для unique
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong uniqueCounter = new AtomicLong();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder crashed = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    LoadGenerator(Settings s) throws IOException {
+        InetAddress host = InetAddress.getByName(s.host);
+        if (!host.isLoopbackAddress()) {
+            throw new IllegalArgumentException("Load generation is allowed only against a local server, got " + host);
+        }
+        if (s.requests <= 0 || s.concurrency <= 0) throw new IllegalArgumentException("--load and --concurrency must be positive");
+        this.s = s;
+        this.address = new InetSocketAddress(host, s.port);
+        this.zipfCdf = switch (s.distribution) {
+            case "unique" -> null;
+            case "zipf" -> zipfCdf(s.keys, s.zipfExponent);
+            default -> throw new IllegalArgumentException("--dist must be 'unique' or 'zipf'");
+        };
+    }
+
+    void run() throws InterruptedException {
+        LOG.info("Load: " + s.requests + " requests to " + address + ", concurrency=" + s.concurrency
+                + ", rate=" + (s.rate > 0 ? s.rate + "/s" : "unlimited") + ", names=" + s.distribution);
+        Semaphore connections = new Semaphore(s.concurrency);
+        long intervalNanos = s.rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / s.rate) : 0;
+        long start = System.nanoTime();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < s.requests; i++) {
+                long scheduled = start + i * intervalNanos;
+                if (intervalNanos > 0) {
+                    long wait;
+                    while ((wait = scheduled - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                } else {
+                    scheduled = System.nanoTime();
+                }
+                connections.acquire();
+                long at = scheduled;
+                clients.submit(() -> {
+                    try {
+                        request(at);
+                    } finally {
+                        connections.release();
+                    }
+                });
+            }
+        }
+        report(System.nanoTime() - start);
+    }
+
+    private void request(long scheduledNanos) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        boolean crash = rnd.nextDouble() < s.crashRatio;
+        boolean delay = !crash && rnd.nextDouble() < s.delayRatio;
+        byte[] nameBytes = (nextName(rnd) + s.options).getBytes(StandardCharsets.US_ASCII);
+        try (SocketChannel ch = SocketChannel.open(address)) {
+            ByteBuffer send = ByteBuffer.allocate(nameBytes.length + 1).put(nameBytes).put((byte) 0).flip();
+            while (send.hasRemaining()) ch.write(send);
+            if (crash) {
+                crashed.increment();
+                return;
+            }
+            if (delay) {
+                delayed.increment();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(s.delaySeconds));
+            }
+            ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
+            long total = 0;
+            int r;
+            while ((r = ch.read(buf)) != -1) {
+                total += r;
+                buf.clear();
+            }
+            bytes.add(total);
+            if (total == 0) { // сервер закрыл соединение без ответа
+                failed.increment();
+                return;
+            }
+            ok.increment();
+            // Задержка, которую клиент устроил себе сам, в перцентили не идёт
+            if (!delay) latency.recordSince(scheduledNanos);
+        } catch (IOException e) {
+            failed.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String nextName(ThreadLocalRandom rnd) {
+        if (zipfCdf == null) return "load-" + runId + "-" + uniqueCounter.incrementAndGet();
+        int i = Arrays.binarySearch(zipfCdf, rnd.nextDouble());
+        return "load-" + (i >= 0 ? i : -i - 1);
+    }
+
+    /** Накопленные вероятности рангов 1..n для распределения Ципфа с показателем exponent. */
+    private static double[] zipfCdf(int n, double exponent) {
+        if (n <= 0) throw new IllegalArgumentException("--keys must be positive");
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++) cdf[k] /= sum;
+        cdf[n - 1] = 1.0;
+        return cdf;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long done = ok.sum();
+        System.out.printf("Requests:    %d ok, %d failed, %d crashed (%d delayed)%n",
+                done, failed.sum(), crashed.sum(), delayed.sum());
+        System.out.printf("Elapsed:     %.2f s, throughput %.1f req/s, %.1f MiB received%n",
+                seconds, done / seconds, bytes.sum() / (1024.0 * 1024.0));
+        System.out.printf("Latency ms:  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                ms(latency.valueAtQuantile(0.50)), ms(latency.valueAtQuantile(0.90)),
+                ms(latency.valueAtQuantile(0.99)), ms(latency.valueAtQuantile(0.999)), ms(latency.max()));
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+}
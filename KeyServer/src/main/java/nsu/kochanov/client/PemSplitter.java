@@ -0,0 +1,101 @@
+package nsu.kochanov.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Потоковый разбор ответа обычного режима (PEM ключа, за ним PEM сертификата): байты пишутся
+ * в файлы по мере прихода, весь ответ в памяти не собирается. Граница — начало
+ * {@code -----BEGIN CERTIFICATE-----}; маркер может разрезаться между кусками, поэтому его
+ * совпавшее начало придерживается, пока не станет ясно, маркер это или часть ключа
+ * (поиск — автоматом Кнута–Морриса–Пратта, каждый байт смотрится один раз).
+ */
+final class PemSplitter {
+    private static final byte[] MARKER = "-----BEGIN CERTIFICATE-----".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] FAILURE = failure(MARKER);
+
+    private final WritableByteChannel key;
+    private final WritableByteChannel cert;
+    private int matched;       // сколько байт маркера совпало и ещё не записано
+    private boolean inCert;
+    private long keyBytes;
+
+    PemSplitter(WritableByteChannel key, WritableByteChannel cert) {
+        this.key = key;
+        this.cert = cert;
+    }
+
+    /** Пишет очередной кусок ответа; buf прочитывается целиком. */
+    void write(ByteBuffer buf) throws IOException {
+        if (inCert) {
+            writeFully(cert, buf);
+            return;
+        }
+        int runStart = buf.position(); // начало байт, которые точно относятся к ключу
+        while (buf.hasRemaining()) {
+            int pos = buf.position();
+            byte b = buf.get();
+            if (b == MARKER[matched]) {
+                if (matched == 0) flushKey(buf, runStart, pos);
+                if (++matched < MARKER.length) continue;
+                // Маркер найден: всё дальше — сертификат
+                inCert = true;
+                if (keyBytes == 0) throw new IOException("Invalid payload: no private key before certificate");
+                writeFully(cert, ByteBuffer.wrap(MARKER));
+                writeFully(cert, buf);
+                return;
+            }
+            if (matched == 0) continue;
+            // Несовпадение: отпускаем в ключ придержанную часть маркера, которая уже не может
+            // быть его началом, и пробуем этот же байт заново
+            int keep = FAILURE[matched - 1];
+            while (keep > 0 && MARKER[keep] != b) keep = FAILURE[keep - 1];
+            if (MARKER[keep] == b) keep++;
+            if (keep == 0) {
+                // Всё придержанное — ключ, текущий байт начинает новый кусок ключа
+                releaseHeld(matched);
+                runStart = pos;
+            } else {
+                // Новый префикс маркера кончается текущим байтом, отпускаем только то, что перед ним
+                releaseHeld(matched + 1 - keep);
+                runStart = buf.position();
+            }
+            matched = keep;
+        }
+        if (matched == 0) flushKey(buf, runStart, buf.position());
+    }
+
+    /** Проверяет, что ответ закончился сертификатом. */
+    void finish() throws IOException {
+        if (!inCert) throw new IOException("Invalid payload: no certificate");
+    }
+
+    /** Придержанные байты — начало маркера, так что пишем их прямо из него. */
+    private void releaseHeld(int count) throws IOException {
+        keyBytes += count;
+        writeFully(key, ByteBuffer.wrap(MARKER, 0, count));
+    }
+
+    private void flushKey(ByteBuffer buf, int from, int to) throws IOException {
+        if (from >= to) return;
+        ByteBuffer run = buf.duplicate().limit(to).position(from);
+        keyBytes += run.remaining();
+        writeFully(key, run);
+    }
+
+    private static void writeFully(WritableByteChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    private static int[] failure(byte[] p) {
+        int[] f = new int[p.length];
+        for (int i = 1, k = 0; i < p.length; i++) {
+            while (k > 0 && p[i] != p[k]) k = f[k - 1];
+            if (p[i] == p[k]) k++;
+            f[i] = k;
+        }
+        return f;
+    }
+}
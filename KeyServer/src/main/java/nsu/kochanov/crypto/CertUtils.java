@@ -1,56 +1,52 @@
 package nsu.kochanov.crypto;
 
 import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
-import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.PrivateKey;
-import java.security.SecureRandom;
-import java.security.cert.Certificate;
+import java.security.Provider;
+import java.security.Security;
 import java.security.cert.X509Certificate;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Date;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
 
 public final class CertUtils {
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    // Один экземпляр провайдера на процесс: его инициализация дорогая
+    static final Provider PROVIDER = registeredProvider();
 
     private CertUtils() {}
 
+    /**
+     * Разовый выпуск сертификата. Для потока запросов от одного CA используйте
+     * {@link CertificateIssuer}: он не готовит подписанта заново на каждый вызов.
+     */
     public static X509Certificate issueCertificate(String issuerDn, String subjectDn, KeyPair subjectKeyPair, PrivateKey caPrivateKey) {
-        try {
-            X500Name issuer = new X500Name(issuerDn);
-            X500Name subject = new X500Name(subjectDn);
-            Instant now = Instant.now();
-            Date notBefore = Date.from(now.minus(1, ChronoUnit.MINUTES));
-            Date notAfter = Date.from(now.plus(3650, ChronoUnit.DAYS)); // ~10 лет
-            BigInteger serial = new BigInteger(160, SECURE_RANDOM);
-
-            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
-                issuer,
-                serial,
-                notBefore,
-                notAfter,
-                subject,
-                subjectKeyPair.getPublic()
-            );
-
-            ContentSigner signer = new JcaContentSignerBuilder("SHA512withRSA").build(caPrivateKey);
-            X509CertificateHolder holder = builder.build(signer);
-            Certificate cert = new JcaX509CertificateConverter()
-                    .setProvider(new BouncyCastleProvider())
-                    .getCertificate(holder);
-            return (X509Certificate) cert;
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to issue certificate", e);
+        return new CertificateIssuer(issuerDn, caPrivateKey).issue(new X500Name(subjectDn), subjectKeyPair.getPublic());
+    }
+
+    /** Алгоритм подписи под тип ключа CA (подписывает именно он, а не ключ субъекта). */
+    public static String signatureAlgorithm(PrivateKey caPrivateKey) {
+        if (caPrivateKey instanceof RSAKey) {
+            return "SHA512withRSA";
+        }
+        if (caPrivateKey instanceof ECKey ec) {
+            return ec.getParams().getCurve().getField().getFieldSize() > 256 ? "SHA384withECDSA" : "SHA256withECDSA";
+        }
+        String alg = caPrivateKey.getAlgorithm();
+        if ("Ed25519".equalsIgnoreCase(alg) || "EdDSA".equalsIgnoreCase(alg)) {
+            return "Ed25519";
         }
+        throw new IllegalArgumentException("Unsupported CA key algorithm: " + alg);
     }
-}
 
+    private static Provider registeredProvider() {
+        Provider p = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+        if (p == null) {
+            p = new BouncyCastleProvider();
+            Security.addProvider(p);
+        }
+        return p;
+    }
+}
 
@@ -0,0 +1,94 @@
+package nsu.kochanov.crypto;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+
+/**
+ * Выпуск сертификатов одним CA. Всё, что не зависит от субъекта, готовится один раз:
+ * разобранный Issuer DN, алгоритм подписи, провайдер BouncyCastle. Подписант и фабрика
+ * сертификатов не потокобезопасны, поэтому у каждой нити пула генерации свои
+ * (подписант после getSignature() готов к следующему сертификату).
+ * На один выпуск остаются сборка TBS-структуры и сама подпись.
+ */
+public final class CertificateIssuer {
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    private final X500Name issuer;
+    private final String issuerDn;
+    private final ThreadLocal<ContentSigner> signers;
+    private final ThreadLocal<CertificateFactory> factories;
+
+    public CertificateIssuer(String issuerDn, PrivateKey caPrivateKey) {
+        this(new X500Name(issuerDn), caPrivateKey);
+    }
+
+    /** Имя CA в готовом виде — например, Subject его сертификата из {@link IssuerStore}. */
+    CertificateIssuer(X500Name issuer, PrivateKey caPrivateKey) {
+        this.issuer = issuer;
+        this.issuerDn = issuer.toString();
+        String algorithm = CertUtils.signatureAlgorithm(caPrivateKey);
+        this.signers = ThreadLocal.withInitial(() -> {
+            try {
+                return new JcaContentSignerBuilder(algorithm).build(caPrivateKey);
+            } catch (OperatorCreationException e) {
+                throw new IllegalStateException("Cannot create " + algorithm + " signer", e);
+            }
+        });
+        this.factories = ThreadLocal.withInitial(() -> {
+            try {
+                return CertificateFactory.getInstance("X.509", CertUtils.PROVIDER);
+            } catch (CertificateException e) {
+                throw new IllegalStateException("Cannot create X.509 certificate factory", e);
+            }
+        });
+    }
+
+    public String getIssuerDn() {
+        return issuerDn;
+    }
+
+    /** Сертификат с Subject {@code CN=<commonName>} на открытый ключ субъекта. */
+    public X509Certificate issue(String commonName, PublicKey subjectKey) {
+        X500Name subject = new X500NameBuilder(BCStyle.INSTANCE).addRDN(BCStyle.CN, commonName).build();
+        return issue(subject, subjectKey);
+    }
+
+    X509Certificate issue(X500Name subject, PublicKey subjectKey) {
+        try {
+            Instant now = Instant.now();
+            Date notBefore = Date.from(now.minus(1, ChronoUnit.MINUTES));
+            Date notAfter = Date.from(now.plus(3650, ChronoUnit.DAYS)); // ~10 лет
+            BigInteger serial = new BigInteger(160, SECURE_RANDOM);
+
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                issuer,
+                serial,
+                notBefore,
+                notAfter,
+                subject,
+                subjectKey
+            );
+            byte[] der = builder.build(signers.get()).getEncoded();
+            return (X509Certificate) factories.get().generateCertificate(new ByteArrayInputStream(der));
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to issue certificate", e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package nsu.kochanov.crypto;
+
+import org.bouncycastle.asn1.x500.X500Name;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Несколько выпускающих CA (например, промежуточный на каждого арендатора) в одном бинарном
+ * файле, отображённом в память. Открытие разбирает только оглавление — идентификаторы и
+ * смещения записей, без PEM и без BouncyCastle; ключ CA декодируется из DER при первом
+ * выпуске этим CA, и готовый {@link CertificateIssuer} дальше берётся из словаря.
+ * <p>
+ * Формат (числа big-endian): {@code "KSIS" | version(2) | count(2)}, затем count записей
+ * {@code idLen(1) id | algLen(1) алгоритм ключа | nameLen(2) DER имени CA |
+ * keyLen(4) PKCS#8 DER ключа | certLen(4) DER сертификата CA (0 — нет)}.
+ * Файл собирается утилитой {@code BuildIssuerStore}; в нём закрытые ключи, права — только владельцу.
+ */
+public final class IssuerStore {
+    private static final int MAGIC = 0x4B534953; // "KSIS"
+    private static final short VERSION = 1;
+
+    /** Запись хранилища при сборке файла. */
+    public record Entry(String id, String keyAlgorithm, byte[] issuerName, byte[] key, byte[] cert) {}
+
+    private final ByteBuffer data;
+    private final Map<String, Integer> offsets; // id -> начало записи, в порядке файла
+    private final Map<String, CertificateIssuer> loaded = new ConcurrentHashMap<>();
+
+    private IssuerStore(ByteBuffer data, Map<String, Integer> offsets) {
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    public static IssuerStore open(Path file) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()); // отображение живёт и после закрытия канала
+        }
+        try {
+            ByteBuffer buf = data.duplicate();
+            if (buf.getInt() != MAGIC) throw new IOException(file + ": not an issuer store");
+            if (buf.getShort() != VERSION) throw new IOException(file + ": unsupported issuer store version");
+            int count = Short.toUnsignedInt(buf.getShort());
+            Map<String, Integer> offsets = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                int start = buf.position();
+                String id = new String(bytes(buf, Byte.toUnsignedInt(buf.get())), StandardCharsets.US_ASCII);
+                skip(buf, Byte.toUnsignedInt(buf.get()));
+                skip(buf, Short.toUnsignedInt(buf.getShort()));
+                skip(buf, buf.getInt());
+                skip(buf, buf.getInt());
+                if (offsets.put(id, start) != null) throw new IOException(file + ": duplicate issuer '" + id + "'");
+            }
+            if (offsets.isEmpty()) throw new IOException(file + ": no issuers");
+            return new IssuerStore(data, Collections.unmodifiableMap(offsets));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(file + ": truncated issuer store", e);
+        }
+    }
+
+    public static void write(Path file, List<Entry> entries) throws IOException {
+        // длины пишутся в беззнаковые поля фиксированной ширины — усечение дало бы битый файл
+        if (entries.size() > 0xFFFF) throw new IllegalArgumentException("At most 65535 issuers per store");
+        int size = 8;
+        for (Entry e : entries) {
+            if (e.keyAlgorithm().length() > 255) throw new IllegalArgumentException("Key algorithm name too long");
+            if (e.issuerName().length > 0xFFFF) {
+                throw new IllegalArgumentException("Issuer name of '" + e.id() + "' exceeds 65535 bytes");
+            }
+            size += 1 + e.id().length() + 1 + e.keyAlgorithm().length() + 2 + e.issuerName().length
+                    + 4 + e.key().length + 4 + (e.cert() == null ? 0 : e.cert().length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MAGIC).putShort(VERSION).putShort((short) entries.size());
+        for (Entry e : entries) {
+            byte[] id = e.id().getBytes(StandardCharsets.US_ASCII);
+            byte[] alg = e.keyAlgorithm().getBytes(StandardCharsets.US_ASCII);
+            if (id.length == 0 || id.length > 255) throw new IllegalArgumentException("Issuer id must be 1..255 characters");
+            byte[] cert = e.cert() == null ? new byte[0] : e.cert();
+            buf.put((byte) id.length).put(id)
+                    .put((byte) alg.length).put(alg)
+                    .putShort((short) e.issuerName().length).put(e.issuerName())
+                    .putInt(e.key().length).put(e.key())
+                    .putInt(cert.length).put(cert);
+        }
+        buf.flip();
+        // Ключи пишутся во временный файл, закрытый для всех, кроме владельца, с момента создания,
+        // и переносятся на место одним переименованием: ни чужих прав, ни полузаписанного файла
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp;
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            File f = tmp.toFile();
+            if (!(f.setReadable(false, false) && f.setReadable(true, true)
+                    && f.setWritable(false, false) && f.setWritable(true, true))) {
+                Files.deleteIfExists(tmp);
+                throw new IOException(tmp + ": cannot restrict permissions to the owner");
+            }
+        }
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (buf.hasRemaining()) out.write(buf);
+                out.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    public Set<String> ids() {
+        return offsets.keySet();
+    }
+
+    public boolean contains(String id) {
+        return offsets.containsKey(id);
+    }
+
+    /** CA с данным id; при первом обращении ключ декодируется из отображённого файла. */
+    public CertificateIssuer issuer(String id) {
+        CertificateIssuer issuer = loaded.get(id);
+        if (issuer != null) return issuer;
+        Integer offset = offsets.get(id);
+        if (offset == null) throw new IllegalArgumentException("Unknown issuer '" + id + "'");
+        return loaded.computeIfAbsent(id, k -> decode(offset));
+    }
+
+    private CertificateIssuer decode(int offset) {
+        ByteBuffer buf = data.duplicate().position(offset);
+        skip(buf, Byte.toUnsignedInt(buf.get()));
+        String algorithm = new String(bytes(buf, Byte.toUnsignedInt(buf.get())), StandardCharsets.US_ASCII);
+        X500Name name = X500Name.getInstance(bytes(buf, Short.toUnsignedInt(buf.getShort())));
+        byte[] key = bytes(buf, buf.getInt());
+        try {
+            PrivateKey caKey = KeyFactory.getInstance(algorithm, CertUtils.PROVIDER).generatePrivate(new PKCS8EncodedKeySpec(key));
+            return new CertificateIssuer(name, caKey);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot decode issuer key (" + algorithm + ")", e);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buf, int len) {
+        byte[] b = new byte[len];
+        buf.get(b);
+        return b;
+    }
+
+    private static void skip(ByteBuffer buf, int len) {
+        buf.position(buf.position() + len);
+    }
+}
@@ -0,0 +1,57 @@
+package nsu.kochanov.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Профили выпускаемых ключей: алгоритм и размер. RSA-8192 — самый медленный,
+ * EC и Ed25519 генерируются за доли миллисекунды.
+ */
+public enum KeyProfile {
+    RSA_2048("rsa-2048", "RSA", 2048, null),
+    RSA_3072("rsa-3072", "RSA", 3072, null),
+    RSA_4096("rsa-4096", "RSA", 4096, null),
+    RSA_8192("rsa-8192", "RSA", 8192, null),
+    EC_P256("ec-p256", "EC", 0, "secp256r1"),
+    EC_P384("ec-p384", "EC", 0, "secp384r1"),
+    ED25519("ed25519", "Ed25519", 0, null);
+
+    private final String id;
+    private final String algorithm;
+    private final int keySize;   // для RSA
+    private final String curve;  // для EC
+
+    KeyProfile(String id, String algorithm, int keySize, String curve) {
+        this.id = id;
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+        this.curve = curve;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /** Длина ключа RSA в битах; 0 для остальных алгоритмов. */
+    public int rsaBits() {
+        return algorithm.equals("RSA") ? keySize : 0;
+    }
+
+    public KeyPair generate(SecureRandom random) throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance(algorithm);
+        if (keySize > 0) kpg.initialize(keySize, random);
+        else if (curve != null) kpg.initialize(new ECGenParameterSpec(curve), random);
+        else kpg.initialize(255, random);
+        return kpg.generateKeyPair();
+    }
+
+    public static KeyProfile parse(String id) {
+        for (KeyProfile p : values()) {
+            if (p.id.equalsIgnoreCase(id)) return p;
+        }
+        throw new IllegalArgumentException("Unknown key profile '" + id + "'");
+    }
+}
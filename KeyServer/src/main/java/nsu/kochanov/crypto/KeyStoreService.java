@@ -1,33 +1,102 @@
 package nsu.kochanov.crypto;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.util.HexFormat;
 
 public final class KeyStoreService {
-    private final PrivateKey caPrivateKey;
+    private final PrivateKey caPrivateKey; // null, если CA по умолчанию — из хранилища
     private final String issuerDn;
+    private final CertificateIssuer issuer; // null, если CA по умолчанию — из хранилища
+    private final IssuerStore store;        // null, если хранилище не задано
+    private final String defaultId;         // CA по умолчанию в хранилище
+    private final String pemId;             // идентификатор CA из PEM; null, если его нет
 
-    private KeyStoreService(PrivateKey caPrivateKey, String issuerDn) {
+    private KeyStoreService(PrivateKey caPrivateKey, String issuerDn, IssuerStore store, String defaultId) {
         this.caPrivateKey = caPrivateKey;
         this.issuerDn = issuerDn;
+        this.issuer = caPrivateKey == null ? null : new CertificateIssuer(issuerDn, caPrivateKey);
+        this.pemId = caPrivateKey == null ? null : pemId(caPrivateKey, issuerDn);
+        this.store = store;
+        this.defaultId = defaultId;
+    }
+
+    /**
+     * У CA из PEM нет имени в хранилище: идентификатор — отпечаток ключа и DN. Другой ключ
+     * или другой --issuer даёт другой идентификатор, а с ним и другие ключи кэша.
+     */
+    private static String pemId(PrivateKey key, String issuerDn) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(key.getEncoded());
+            md.update(issuerDn.getBytes(StandardCharsets.UTF_8));
+            return "pem-" + HexFormat.of().formatHex(md.digest(), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Идентификатор CA по умолчанию, которым подписываются запросы без issuer=. Входит в ключ
+     * кэша, поэтому после смены CA по умолчанию старые пары не выдаются за новые.
+     */
+    public String defaultIssuerId() {
+        return issuer != null ? pemId : defaultId;
     }
 
     public static KeyStoreService load(Path caKeyPath, String issuerDn) throws IOException {
         PrivateKey key = PemUtils.readPrivateKey(caKeyPath);
-        return new KeyStoreService(key, issuerDn);
+        return new KeyStoreService(key, issuerDn, null, null);
     }
 
+    /**
+     * CA из PEM (caKeyPath, может быть null) и дополнительные CA из хранилища {@link IssuerStore}
+     * (storePath, может быть null). CA по умолчанию — defaultIssuer из хранилища, если задан,
+     * иначе ключ из PEM, иначе первая запись хранилища. Ключи хранилища декодируются при первом
+     * выпуске, так что без PEM запуск не разбирает ни одного ключа.
+     */
+    public static KeyStoreService load(Path caKeyPath, String issuerDn, Path storePath, String defaultIssuer) throws IOException {
+        if (storePath == null) {
+            if (defaultIssuer != null) throw new IllegalArgumentException("--default-issuer requires --issuer-store");
+            return load(caKeyPath, issuerDn);
+        }
+        IssuerStore store = IssuerStore.open(storePath);
+        if (defaultIssuer != null && !store.contains(defaultIssuer)) {
+            throw new IllegalArgumentException("Issuer '" + defaultIssuer + "' is not in " + storePath);
+        }
+        PrivateKey key = caKeyPath != null && defaultIssuer == null ? PemUtils.readPrivateKey(caKeyPath) : null;
+        String defaultId = defaultIssuer != null ? defaultIssuer : store.ids().iterator().next();
+        return new KeyStoreService(key, issuerDn, store, defaultId);
+    }
+
+    /** Ключ CA из PEM; null, если CA по умолчанию взят из хранилища. */
     public PrivateKey getCaPrivateKey() {
         return caPrivateKey;
     }
 
     public String getIssuerDn() {
-        return issuerDn;
+        return issuer != null ? issuerDn : store.issuer(defaultId).getIssuerDn();
     }
-}
-
-
 
+    /** Готовый к выпуску CA по умолчанию: создаётся один раз при загрузке ключа. */
+    public CertificateIssuer getIssuer() {
+        return issuer != null ? issuer : store.issuer(defaultId);
+    }
 
+    /** CA по идентификатору: из хранилища или CA из PEM ({@link #defaultIssuerId}); null — CA по умолчанию. */
+    public CertificateIssuer getIssuer(String id) {
+        if (id == null) return getIssuer();
+        if (id.equals(pemId)) return issuer;
+        if (store == null || !store.contains(id)) throw new IllegalArgumentException("Unknown issuer '" + id + "'");
+        return store.issuer(id);
+    }
 
+    /** Есть ли такой CA; проверка по оглавлению, без декодирования ключа. */
+    public boolean hasIssuer(String id) {
+        return id == null || id.equals(pemId) || (store != null && store.contains(id));
+    }
+}
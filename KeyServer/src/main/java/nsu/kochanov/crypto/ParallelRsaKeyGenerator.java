@@ -0,0 +1,158 @@
+package nsu.kochanov.crypto;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Генерация RSA с параллельным поиском простых p и q. Почти всё время генерации уходит на
+ * проверку кандидатов в простые; здесь их проверяют сразу несколько нитей {@link ForkJoinPool},
+ * и поиск останавливается, как только найдены оба множителя. Ожидаемое число проверок то же,
+ * что у одной нити, поэтому на простаивающих ядрах одиночная генерация ускоряется почти
+ * пропорционально числу нитей.
+ * <p>
+ * Кандидаты — случайные нечётные числа с двумя старшими единичными битами (тогда n ровно
+ * нужной длины) и их нечётные соседи сверху: окно соседей просеивается малыми простыми до
+ * 2^15, как в {@code BigInteger.probablePrime}, так что большинство составных отсеивается без
+ * операций с BigInteger.
+ * Прошедшие решето проверяются {@link BigInteger#isProbablePrime} с той же надёжностью, что
+ * у {@link BigInteger#probablePrime}. Результат — обычные RSAPublicKey и RSAPrivateCrtKey
+ * с e = 65537 и d по модулю НОК(p-1, q-1), как у генератора JDK.
+ */
+public final class ParallelRsaKeyGenerator {
+    private static final BigInteger E = BigInteger.valueOf(65537);
+    private static final int CERTAINTY = 100;
+    private static final int[] SMALL_PRIMES = smallPrimes(1 << 15);
+
+    private final ForkJoinPool pool;
+
+    public ParallelRsaKeyGenerator(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("rsa-search-" + t.getPoolIndex());
+            return t;
+        }, null, false);
+    }
+
+    public int parallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Генерирует пару RSA длины bits. Вызывающая нить ищет сама и берёт в помощь до helpers
+     * нитей пула (0 — поиск только в вызывающей нити, как у обычного генератора).
+     */
+    public KeyPair generate(int bits, SecureRandom random, int helpers) throws GeneralSecurityException {
+        if (bits < 1024 || bits % 2 != 0) throw new IllegalArgumentException("Unsupported RSA key size " + bits);
+        int half = bits / 2;
+        while (true) {
+            Search search = new Search(half);
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < Math.min(helpers, pool.getParallelism()); i++) {
+                tasks.add(pool.submit(() -> search.run(new SecureRandom())));
+            }
+            search.run(random);
+            // Оба простых уже найдены (found опубликован записью done): ещё не начатые помощники
+            // снимаются с очереди, а работающие увидят done на следующем кандидате и выйдут сами
+            for (ForkJoinTask<?> t : tasks) t.cancel(false);
+
+            BigInteger p = search.found[0].max(search.found[1]);
+            BigInteger q = search.found[0].min(search.found[1]);
+            BigInteger p1 = p.subtract(BigInteger.ONE);
+            BigInteger q1 = q.subtract(BigInteger.ONE);
+            BigInteger lcm = p1.divide(p1.gcd(q1)).multiply(q1);
+            BigInteger d = E.modInverse(lcm);
+            // FIPS 186-4 требует d > 2^(bits/2); иначе — заново, на практике не случается
+            if (d.bitLength() <= half) continue;
+            BigInteger n = p.multiply(q);
+            KeyFactory kf = KeyFactory.getInstance("RSA");
+            return new KeyPair(
+                    kf.generatePublic(new RSAPublicKeySpec(n, E)),
+                    kf.generatePrivate(new RSAPrivateCrtKeySpec(n, E, d, p, q, d.mod(p1), d.mod(q1), q.modInverse(p))));
+        }
+    }
+
+    /** Общий поиск двух простых: найденные отдаются через offer, остальные нити видят done и выходят. */
+    private static final class Search {
+        final int bits;
+        final BigInteger[] found = new BigInteger[2]; // под this
+        int count;
+        volatile boolean done;
+
+        Search(int bits) {
+            this.bits = bits;
+        }
+
+        synchronized void offer(BigInteger prime) {
+            if (done) return;
+            // p и q должны различаться в старших 100 битах (FIPS 186-4), иначе n раскладывается методом Ферма
+            if (count == 1 && found[0].subtract(prime).abs().bitLength() <= bits - 100) return;
+            found[count++] = prime;
+            if (count == 2) done = true;
+        }
+
+        void run(SecureRandom random) {
+            boolean[] composite = new boolean[bits]; // кандидаты base + 2k окна
+            while (!done) {
+                BigInteger base = new BigInteger(bits, random).setBit(bits - 1).setBit(bits - 2).setBit(0);
+                sieve(base, composite);
+                for (int k = 0; k < composite.length && !done; k++) {
+                    if (composite[k]) continue;
+                    BigInteger candidate = base.add(BigInteger.valueOf(2L * k));
+                    if (candidate.bitLength() != bits) break;
+                    if (candidate.isProbablePrime(CERTAINTY)) offer(candidate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Отмечает в окне кандидатов base + 2k, делящихся на малое простое, и те, у которых
+     * p - 1 делится на e. Остатки base считаются по произведениям пар простых — одно деление
+     * BigInteger на два простых.
+     */
+    private static void sieve(BigInteger base, boolean[] composite) {
+        Arrays.fill(composite, false);
+        for (int i = 0; i < SMALL_PRIMES.length; i += 2) {
+            int p = SMALL_PRIMES[i];
+            int q = i + 1 < SMALL_PRIMES.length ? SMALL_PRIMES[i + 1] : 1;
+            int r = base.mod(BigInteger.valueOf((long) p * q)).intValue();
+            mark(composite, p, r % p, 0);
+            if (q > 1) mark(composite, q, r % q, 0);
+        }
+        mark(composite, E.intValue(), base.mod(E).intValue(), 1);
+    }
+
+    /** Отмечает k, при которых base + 2k ≡ target (mod p), если остаток base равен residue. */
+    private static void mark(boolean[] composite, int p, int residue, int target) {
+        long half = (p + 1) / 2; // обратный к 2 по модулю p
+        int k = (int) (Math.floorMod(target - residue, p) * half % p);
+        for (; k < composite.length; k += p) composite[k] = true;
+    }
+
+    /** Нечётные простые меньше limit (решето Эратосфена). */
+    private static int[] smallPrimes(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 3; i < limit; i += 2) {
+            if (composite[i]) continue;
+            count++;
+            for (int j = i * i; j < limit; j += 2 * i) composite[j] = true;
+        }
+        int[] primes = new int[count];
+        for (int i = 3, k = 0; i < limit; i += 2) {
+            if (!composite[i]) primes[k++] = i;
+        }
+        return primes;
+    }
+}
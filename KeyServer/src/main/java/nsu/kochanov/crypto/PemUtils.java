@@ -6,6 +6,7 @@ import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JcaPKCS8Generator;
 
 import java.io.IOException;
 import java.io.Reader;
@@ -64,6 +65,19 @@ public final class PemUtils {
         String pem = toPem(obj);
         Files.writeString(path, pem);
     }
+
+    /**
+     * Закрытый ключ в PKCS#8 ({@code BEGIN PRIVATE KEY}) независимо от класса ключа: в SEC1
+     * ({@code BEGIN EC PRIVATE KEY}) ключ EC может лечь без кривой и открытого ключа,
+     * и {@link #readPrivateKey} его потом не разберёт.
+     */
+    public static void writePrivateKey(Path path, PrivateKey key) throws IOException {
+        try (StringWriter sw = new StringWriter(); JcaPEMWriter writer = new JcaPEMWriter(sw)) {
+            writer.writeObject(new JcaPKCS8Generator(key, null));
+            writer.flush();
+            Files.writeString(path, sw.toString());
+        }
+    }
 }
 
 
@@ -0,0 +1,88 @@
+package nsu.kochanov.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей (в наносекундах) с лог-линейными корзинами, как в HdrHistogram:
+ * каждая октава [2^e, 2^(e+1)) делится на 64 равные корзины, так что относительная ошибка
+ * не больше ~1,6% на всём диапазоне до 2^45 нс (около 9 часов). Значения меньше 128 хранятся
+ * точно.
+ * <p>
+ * Запись — вычисление индекса и один атомарный инкремент, без блокировок и аллокаций,
+ * поэтому гистограммы можно держать включёнными постоянно. Процентили считаются по
+ * текущему состоянию счётчиков и при одновременной записи приблизительны.
+ */
+public final class LatencyHistogram {
+    private static final int PRECISION_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << PRECISION_BITS;   // корзин в октаве
+    private static final int MAX_EXPONENT = 44;                    // старшая октава: [2^44, 2^45)
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Значения вне диапазона прижимаются к его границам. */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        else if (value > MAX_VALUE) value = MAX_VALUE;
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) m = max.get();
+    }
+
+    /** Записывает время, прошедшее с startNanos ({@link System#nanoTime()}). */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Значение, не меньше которого доля quantile (0..1) записей: верхняя граница корзины,
+     * в которую попадает этот процентиль. 0, если записей нет.
+     */
+    public long valueAtQuantile(double quantile) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // > PRECISION_BITS
+        int shift = exponent - PRECISION_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return 2 * SUB_BUCKETS + (exponent - PRECISION_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int group = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS;
+        int shift = group + 1;
+        return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,45 @@
+package nsu.kochanov.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Реестр счётчиков сервера. Счётчики запрашиваются один раз (при создании компонента),
+ * а на горячем пути только инкрементируются — без поиска по имени и без аллокаций.
+ * Гистограммы длительностей в снимке разворачиваются в {@code имя.count}, {@code имя.p50},
+ * {@code имя.p99}, {@code имя.p999} и {@code имя.max}.
+ */
+public final class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> out = new TreeMap<>();
+        counters.forEach((name, c) -> out.put(name, c.sum()));
+        gauges.forEach((name, g) -> out.put(name, g.getAsLong()));
+        histograms.forEach((name, h) -> {
+            out.put(name + ".count", h.count());
+            out.put(name + ".p50", h.valueAtQuantile(0.50));
+            out.put(name + ".p99", h.valueAtQuantile(0.99));
+            out.put(name + ".p999", h.valueAtQuantile(0.999));
+            out.put(name + ".max", h.max());
+        });
+        return out;
+    }
+}
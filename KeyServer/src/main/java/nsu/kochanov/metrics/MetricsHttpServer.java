@@ -0,0 +1,121 @@
+package nsu.kochanov.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Маленький HTTP-сервер метрик: {@code GET /metrics} отдаёт снимок реестра текстом,
+ * по строке {@code имя значение} на метрику. Обслуживается одной служебной нитью
+ * и на работу основного сервера не влияет. Служебные действия ({@link #action}), например
+ * перезагрузку настроек, вешают на отдельный сервер {@link #startAdmin}: авторизации нет,
+ * поэтому он слушает только loopback, а порт метрик можно открыть для сборщика.
+ */
+public final class MetricsHttpServer implements Closeable {
+    /** Служебное действие: параметры запроса → текст ответа. */
+    @FunctionalInterface
+    public interface Action {
+        String run(Map<String, String> params) throws Exception;
+    }
+
+    private final HttpServer http;
+
+    private MetricsHttpServer(HttpServer http) {
+        this.http = http;
+    }
+
+    public static MetricsHttpServer start(int port, Metrics metrics) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                StringBuilder sb = new StringBuilder(4096);
+                for (Map.Entry<String, Long> e : metrics.snapshot().entrySet()) {
+                    sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+                }
+                send(exchange, 200, sb.toString());
+            }
+        });
+        http.start();
+        return new MetricsHttpServer(http);
+    }
+
+    /** Сервер без метрик только для служебных действий; принимает соединения лишь с этой машины. */
+    public static MetricsHttpServer startAdmin(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.start();
+        return new MetricsHttpServer(http);
+    }
+
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Вешает действие на {@code POST path?k=v&...}. Ошибки отдаются текстом:
+     * IllegalArgumentException — 400, IllegalStateException — 409, остальные — 500.
+     */
+    public void action(String path, Action action) {
+        http.createContext(path, exchange -> {
+            try (exchange) {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                int code = 200;
+                String body;
+                try {
+                    body = action.run(query(exchange.getRequestURI().getRawQuery()));
+                } catch (IllegalArgumentException e) {
+                    code = 400;
+                    body = e.getMessage();
+                } catch (IllegalStateException e) {
+                    code = 409;
+                    body = e.getMessage();
+                } catch (Exception e) {
+                    code = 500;
+                    body = e.toString();
+                }
+                send(exchange, code, body + "\n");
+            }
+        });
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if (raw == null || raw.isEmpty()) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String k = eq < 0 ? pair : pair.substring(0, eq);
+            String v = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        http.stop(0);
+    }
+}
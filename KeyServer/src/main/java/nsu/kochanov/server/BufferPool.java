@@ -0,0 +1,55 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул direct-буферов чтения одного размера. Буферы нарезаются из больших слэбов
+ * (один allocateDirect на {@code buffersPerSlab} буферов) и возвращаются в пул после
+ * использования; слэбы не освобождаются, так что память пула ограничена пиковым спросом.
+ * Учитывается число выданных буферов и его максимум за время работы.
+ */
+final class BufferPool {
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger highWater = new AtomicInteger();
+
+    BufferPool(int bufferSize, int buffersPerSlab, Metrics metrics) {
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        metrics.gauge("readbuf.allocated", allocated::get);
+        metrics.gauge("readbuf.inuse", inUse::get);
+        metrics.gauge("readbuf.highwater", highWater::get);
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) buf = allocateSlab();
+        highWater.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+        return buf;
+    }
+
+    void release(ByteBuffer buf) {
+        buf.clear();
+        inUse.decrementAndGet();
+        free.add(buf);
+    }
+
+    private synchronized ByteBuffer allocateSlab() {
+        ByteBuffer buf = free.poll(); // пока ждали монитор, буфер могли вернуть
+        if (buf != null) return buf;
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+        for (int i = 1; i < buffersPerSlab; i++) {
+            free.add(slab.slice(i * bufferSize, bufferSize));
+        }
+        allocated.addAndGet(buffersPerSlab);
+        return slab.slice(0, bufferSize);
+    }
+}
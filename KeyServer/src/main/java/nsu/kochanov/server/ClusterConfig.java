@@ -0,0 +1,55 @@
+package nsu.kochanov.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Статический состав кластера из текстового файла: по узлу на строку, {@code id host:port}.
+ * Пустые строки и строки с {@code #} пропускаются. Файл одинаков на всех узлах; каждый узел
+ * узнаёт себя по {@code --node-id} и слушает порт из своей строки.
+ */
+final class ClusterConfig {
+    record Node(String id, InetSocketAddress address) {}
+
+    private final List<Node> nodes;
+
+    private ClusterConfig(List<Node> nodes) {
+        this.nodes = List.copyOf(nodes);
+    }
+
+    static ClusterConfig load(Path file) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        int lineNo = 0;
+        for (String line : Files.readAllLines(file)) {
+            lineNo++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+");
+            int colon = parts.length == 2 ? parts[1].lastIndexOf(':') : -1;
+            if (colon <= 0) throw new IllegalArgumentException(file + ":" + lineNo + ": expected 'id host:port'");
+            String id = parts[0];
+            for (Node n : nodes) {
+                if (n.id().equals(id)) throw new IllegalArgumentException(file + ":" + lineNo + ": duplicate node '" + id + "'");
+            }
+            int port = Integer.parseInt(parts[1].substring(colon + 1));
+            nodes.add(new Node(id, new InetSocketAddress(parts[1].substring(0, colon), port)));
+        }
+        if (nodes.isEmpty()) throw new IllegalArgumentException(file + ": no nodes");
+        return new ClusterConfig(nodes);
+    }
+
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    Node node(String id) {
+        for (Node n : nodes) {
+            if (n.id().equals(id)) return n;
+        }
+        throw new IllegalArgumentException("Node '" + id + "' is not in the cluster config");
+    }
+}
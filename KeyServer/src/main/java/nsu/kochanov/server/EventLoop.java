@@ -0,0 +1,134 @@
+package nsu.kochanov.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Рабочая IO-нить: свой Selector, своя очередь задач. Обслуживает чтение и запись
+ * соединений, которые ей раздаёт принимающая нить {@link KeyServer}.
+ * Все операции с ключами соединения выполняются только в этой нити; другие нити
+ * передают работу через {@link #execute(Runnable)}.
+ */
+final class EventLoop implements Runnable {
+    private static final Logger LOG = Logger.getLogger(EventLoop.class.getName());
+    private static final long SELECT_TIMEOUT_MS = 250;
+    // Дедлайны соединений измеряются секундами, так что тика в 100 мс с запасом хватает;
+    // 1024 ячейки — примерно 100 секунд на оборот
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SIZE = 1024;
+
+    private final KeyServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // true, если wakeup() уже вызван и ещё не «съеден» select'ом — лишние вызовы не нужны
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private final Thread thread;
+    // Общий для всех соединений нити массив под gathering write; после записи очищается
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    // Общий буфер чтения: соединение занимает буфер из пула, только если имя пришло не целиком
+    private final ByteBuffer readScratch;
+    private final TimingWheel wheel = new TimingWheel(TICK_NANOS, WHEEL_SIZE, System.nanoTime());
+
+    EventLoop(KeyServer server, int index, int readBufferSize) throws IOException {
+        this.server = server;
+        this.readScratch = ByteBuffer.allocateDirect(readBufferSize);
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "io-loop-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /** Передаёт принятое соединение этой нити: регистрация в селекторе произойдёт внутри цикла. */
+    void register(SocketChannel ch) {
+        execute(() -> {
+            try {
+                SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                server.accepted(key, this);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Failed to register connection", e);
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    ByteBuffer readScratch() {
+        return readScratch;
+    }
+
+    ByteBuffer[] gatherArray() {
+        return gather;
+    }
+
+    TimingWheel wheel() {
+        return wheel;
+    }
+
+    /** Ключи соединений нити; только из самой нити. */
+    Set<SelectionKey> keys() {
+        return selector.keys();
+    }
+
+    /** Закрывает селектор: цикл завершится на ближайшем select. Только из самой нити. */
+    void close() throws IOException {
+        selector.close();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                wakenUp.set(false);
+                // Задачи могли прийти, пока wakenUp был true: тогда не засыпаем
+                if (tasks.isEmpty()) selector.select(SELECT_TIMEOUT_MS);
+                else selector.selectNow();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isReadable()) server.handleRead(key);
+                    if (key.isValid() && key.isWritable()) server.handleWrite(key);
+                }
+
+                // Выполним накопленные IO-задачи (например, переключение на запись)
+                Runnable task;
+                while ((task = tasks.poll()) != null) task.run();
+
+                // Закрываем соединения с истёкшими дедлайнами
+                wheel.advance(System.nanoTime());
+            }
+        } catch (ClosedSelectorException e) {
+            LOG.fine(() -> thread.getName() + " stopped");
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, thread.getName() + " failed", e);
+        }
+    }
+}
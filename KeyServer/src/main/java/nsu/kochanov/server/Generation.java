@@ -0,0 +1,65 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.server.GenerationScheduler.Job;
+import nsu.kochanov.server.GenerationScheduler.Priority;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Незавершённая генерация пары для одного ключа кэша и число соединений, которые её ждут.
+ * <p>
+ * Каждое соединение, получившее эту future из кэша, увеличивает счётчик ({@link #retain}) и
+ * уменьшает его при закрытии ({@link #release}). Когда ушёл последний ждущий, а задача ещё стоит
+ * в очереди, её можно снять ({@link #drop}) или понизить до фонового приоритета ({@link #demote});
+ * новый ждущий возвращает понижённой задаче исходный приоритет.
+ */
+final class Generation extends CompletableFuture<Result> {
+    private final IssueRequest request;
+    private final GenerationScheduler scheduler;
+    private volatile Job job;
+    private int waiters;     // под this
+    private boolean dropped; // под this
+    private boolean demoted; // под this
+
+    Generation(IssueRequest request, GenerationScheduler scheduler) {
+        this.request = request;
+        this.scheduler = scheduler;
+    }
+
+    void setJob(Job job) {
+        this.job = job;
+    }
+
+    /** false — задачу уже сняли с очереди, future вот-вот завершится с ошибкой. */
+    synchronized boolean retain() {
+        if (dropped) return false;
+        if (waiters++ == 0 && demoted && job != null) {
+            scheduler.reprioritize(job, request.priority());
+            demoted = false;
+        }
+        return true;
+    }
+
+    /** true — ушёл последний ждущий, а результата ещё нет. */
+    synchronized boolean release() {
+        return --waiters == 0 && !isDone();
+    }
+
+    synchronized int waiters() {
+        return waiters;
+    }
+
+    /** Снимает задачу с очереди, если её никто не ждёт и она ещё не начата. */
+    synchronized boolean drop() {
+        if (waiters > 0 || job == null || !scheduler.cancel(job)) return false;
+        dropped = true;
+        return true;
+    }
+
+    /** Переводит задачу в фоновый класс, если её никто не ждёт и она ещё не начата. */
+    synchronized boolean demote() {
+        if (waiters > 0 || job == null || !scheduler.reprioritize(job, Priority.LOW)) return false;
+        demoted = true;
+        return true;
+    }
+}
@@ -0,0 +1,190 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.LatencyHistogram;
+import nsu.kochanov.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Очередь задач генерации перед пулом нитей.
+ * <p>
+ * Задачи делятся на классы приоритета; пока есть задачи более высокого класса, низкий ждёт.
+ * Поэтому {@code HIGH} клиенту выдаёт не планировщик, а {@link KeyServer}: только доверенным адресам.
+ * Внутри класса у каждого клиента своя очередь, клиенты обслуживаются по кругу — клиент,
+ * заваливший сервер уникальными именами, не отодвигает остальных. Общая длина очереди
+ * ограничена: сверх лимита задача отклоняется сразу ({@link RejectedExecutionException}),
+ * и соединение получает отказ вместо многоминутного ожидания.
+ * <p>
+ * В пул на каждую принятую задачу отправляется «жетон», который забирает следующую по очереди
+ * задачу, так что пул сам по себе остаётся обычным FIFO.
+ */
+final class GenerationScheduler {
+    enum Priority { HIGH, NORMAL, LOW }
+
+    /** Задача в очереди; отменить можно, пока её не забрала нить пула. */
+    static final class Job {
+        final Runnable task;
+        final String client;
+        Priority priority; // под монитором планировщика
+        final long enqueuedNanos = System.nanoTime();
+        boolean queued = true; // под монитором планировщика
+
+        Job(Runnable task, String client, Priority priority) {
+            this.task = task;
+            this.client = client;
+            this.priority = priority;
+        }
+    }
+
+    /** Очереди одного класса приоритета: по клиенту, с круговым обходом непустых. */
+    private static final class ClassQueue {
+        final Map<String, ArrayDeque<Job>> byClient = new HashMap<>();
+        final ArrayDeque<String> rotation = new ArrayDeque<>();
+        int size;
+
+        void add(Job job) {
+            ArrayDeque<Job> q = byClient.computeIfAbsent(job.client, c -> new ArrayDeque<>());
+            if (q.isEmpty()) rotation.add(job.client);
+            q.add(job);
+            size++;
+        }
+
+        Job poll() {
+            String client = rotation.poll();
+            if (client == null) return null;
+            ArrayDeque<Job> q = byClient.get(client);
+            Job job = q.poll();
+            if (q.isEmpty()) byClient.remove(client);
+            else rotation.add(client);
+            size--;
+            return job;
+        }
+
+        boolean remove(Job job) {
+            ArrayDeque<Job> q = byClient.get(job.client);
+            if (q == null || !q.remove(job)) return false;
+            if (q.isEmpty()) {
+                byClient.remove(job.client);
+                rotation.remove(job.client);
+            }
+            size--;
+            return true;
+        }
+    }
+
+    private final Executor executor;
+    private final int capacity;
+    private final ClassQueue[] classes = new ClassQueue[Priority.values().length];
+    private int size; // под this
+    private boolean shutdown; // под this
+
+    private final LongAdder submitted;
+    private final LongAdder rejected;
+    private final LatencyHistogram waitNanos;
+    private final LongAdder waitSum = new LongAdder(); // для среднего ожидания за окно (PoolSizeController)
+
+    GenerationScheduler(Executor executor, int capacity, Metrics metrics) {
+        this.executor = executor;
+        this.capacity = capacity;
+        for (int i = 0; i < classes.length; i++) classes[i] = new ClassQueue();
+        this.submitted = metrics.counter("scheduler.submitted");
+        this.rejected = metrics.counter("scheduler.rejected");
+        this.waitNanos = metrics.histogram("scheduler.wait.nanos");
+        metrics.gauge("scheduler.queued", this::queued);
+        for (Priority p : Priority.values()) {
+            metrics.gauge("scheduler.queued." + p.name().toLowerCase(), () -> queued(p));
+        }
+        metrics.gauge("scheduler.clients", this::clients);
+    }
+
+    Job submit(Priority priority, String client, Runnable task) {
+        Job job = new Job(task, client, priority);
+        synchronized (this) {
+            if (shutdown) {
+                rejected.increment();
+                throw new RejectedExecutionException("Server is shutting down");
+            }
+            if (size >= capacity) {
+                rejected.increment();
+                throw new RejectedExecutionException("Generation queue is full (" + capacity + ")");
+            }
+            classes[priority.ordinal()].add(job);
+            size++;
+        }
+        submitted.increment();
+        executor.execute(this::runNext);
+        return job;
+    }
+
+    /** Дальше новые задачи отклоняются; уже принятые выполнятся. */
+    synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    /** Убирает задачу из очереди. false — её уже забрала нить пула (или она уже отменена). */
+    synchronized boolean cancel(Job job) {
+        if (!job.queued || !classes[job.priority.ordinal()].remove(job)) return false;
+        job.queued = false;
+        size--;
+        return true;
+    }
+
+    /** Переносит ещё не начатую задачу в другой класс приоритета (в конец очереди её клиента). */
+    synchronized boolean reprioritize(Job job, Priority priority) {
+        if (!job.queued || job.priority == priority) return false;
+        classes[job.priority.ordinal()].remove(job);
+        job.priority = priority;
+        classes[priority.ordinal()].add(job);
+        return true;
+    }
+
+    private void runNext() {
+        Job job = poll();
+        if (job == null) return; // жетон отменённой задачи
+        long wait = System.nanoTime() - job.enqueuedNanos;
+        waitNanos.record(wait);
+        waitSum.add(wait);
+        job.task.run();
+    }
+
+    private synchronized Job poll() {
+        for (ClassQueue q : classes) {
+            Job job = q.poll();
+            if (job != null) {
+                job.queued = false;
+                size--;
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /** Суммарное ожидание в очереди всех начатых задач. */
+    long totalWaitNanos() {
+        return waitSum.sum();
+    }
+
+    /** Сколько задач забрано из очереди в работу. */
+    long started() {
+        return waitNanos.count();
+    }
+
+    synchronized int queued() {
+        return size;
+    }
+
+    private synchronized int queued(Priority priority) {
+        return classes[priority.ordinal()].size;
+    }
+
+    private synchronized int clients() {
+        int n = 0;
+        for (ClassQueue q : classes) n += q.byClient.size();
+        return n;
+    }
+}
@@ -0,0 +1,57 @@
+package nsu.kochanov.server;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Кольцо консистентного хеширования: каждый узел занимает {@link #VNODES} точек на кольце
+ * 64-битных хешей, владелец ключа — узел первой точки не меньше хеша ключа (по кругу).
+ * При добавлении или удалении узла переезжает только его доля ключей, а виртуальные точки
+ * выравнивают доли узлов.
+ * <p>
+ * Кольцо неизменяемо; поиск — двоичный поиск по отсортированному массиву, без аллокаций.
+ */
+final class HashRing {
+    static final int VNODES = 160;
+
+    private final long[] points;
+    private final ClusterConfig.Node[] owners;
+
+    HashRing(List<ClusterConfig.Node> nodes) {
+        int n = nodes.size() * VNODES;
+        long[] hashes = new long[n];
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int v = 0; v < VNODES; v++) {
+                hashes[i * VNODES + v] = hash(nodes.get(i).id() + "#" + v);
+            }
+        }
+        // Сортируем точки, сохраняя, какому узлу какая принадлежит
+        Integer[] idx = new Integer[n];
+        for (int i = 0; i < n; i++) idx[i] = i;
+        Arrays.sort(idx, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        this.points = new long[n];
+        this.owners = new ClusterConfig.Node[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = hashes[idx[i]];
+            owners[i] = nodes.get(idx[i] / VNODES);
+        }
+    }
+
+    ClusterConfig.Node owner(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /** FNV-1a по символам строки с финальным перемешиванием splitmix64 — биты распределены равномерно. */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
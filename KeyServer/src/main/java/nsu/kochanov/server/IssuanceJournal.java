@@ -0,0 +1,251 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.LatencyHistogram;
+import nsu.kochanov.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал выпуска (write-ahead log) рядом с {@link ResultStore}: какие ключи кэша запрошены
+ * в генерацию и какие из них завершились. После падения незавершённые генерации можно
+ * поставить в очередь заново, не дожидаясь, пока клиенты повторят запросы; готовые пары и так
+ * лежат в хранилище.
+ * <p>
+ * Запись: {@code type(1) | keyLen(2) | crc32(4) | key}, crc — по type и key. Пишет журнал одна
+ * нить: записи копятся в буфере, нить забирает всё накопленное, пишет одним вызовом и делает
+ * один fsync на пачку (group commit). Вызывающие не ждут диска; кому нужна гарантия, ждёт
+ * {@link #awaitDurable}. Множество незавершённых ключей хранится и в памяти: при открытии
+ * и при разрастании файла журнал переписывается, и в нём остаются только они.
+ * <p>
+ * Ошибка записи или fsync останавливает журнал: ждущие получают IOException, дальнейшие
+ * записи игнорируются, как после закрытия, — сервер работает дальше, но без восстановления.
+ */
+final class IssuanceJournal implements Closeable {
+    private static final Logger LOG = Logger.getLogger(IssuanceJournal.class.getName());
+    private static final byte REQUESTED = 1;
+    private static final byte DONE = 2;
+    private static final int HEADER_LEN = 7;
+    private static final long COMPACT_BYTES = 64L * 1024 * 1024;
+
+    private final Path file;
+    private FileChannel channel; // только в нити записи (и в open до её запуска)
+
+    private final Object lock = new Object();
+    private final Set<String> pending = new LinkedHashSet<>(); // под lock
+    private ByteBuffer active = ByteBuffer.allocate(64 * 1024); // под lock: ещё не записанные
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);  // только в нити записи
+    private long appended; // номер последней записи в буфере, под lock
+    private long durable;  // номер последней записи на диске, под lock
+    private boolean closed;
+    private IOException failure; // под lock: ошибка, остановившая нить записи
+    private final List<String> recovered;
+    private final Thread writer;
+
+    private final LongAdder records;
+    private final LongAdder syncs;
+    private final LatencyHistogram syncNanos;
+
+    private IssuanceJournal(Path file, FileChannel channel, List<String> recovered, Metrics metrics) {
+        this.file = file;
+        this.channel = channel;
+        this.recovered = recovered;
+        this.pending.addAll(recovered);
+        this.records = metrics.counter("journal.records");
+        this.syncs = metrics.counter("journal.syncs");
+        this.syncNanos = metrics.histogram("journal.sync.nanos");
+        metrics.gauge("journal.pending", () -> {
+            synchronized (lock) {
+                return pending.size();
+            }
+        });
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Открывает журнал в каталоге хранилища, восстанавливая незавершённые ключи, и сразу сжимает файл. */
+    static IssuanceJournal open(Path dir, Metrics metrics) throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve("journal.log");
+        Set<String> unfinished = new LinkedHashSet<>();
+        if (Files.exists(file)) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= HEADER_LEN) {
+                int start = buf.position();
+                byte type = buf.get();
+                int len = Short.toUnsignedInt(buf.getShort());
+                int sum = buf.getInt();
+                if (buf.remaining() < len) break;
+                crc.reset();
+                crc.update(type);
+                crc.update(buf.array(), buf.position(), len);
+                if ((int) crc.getValue() != sum || (type != REQUESTED && type != DONE)) {
+                    buf.position(start);
+                    break;
+                }
+                String key = new String(buf.array(), buf.position(), len, StandardCharsets.US_ASCII);
+                buf.position(buf.position() + len);
+                if (type == REQUESTED) unfinished.add(key);
+                else unfinished.remove(key);
+            }
+            if (buf.hasRemaining()) LOG.warning("Ignoring damaged tail of " + file + " at offset " + buf.position());
+        }
+        FileChannel ch = rewrite(file, unfinished);
+        LOG.info("Issuance journal " + file + ": " + unfinished.size() + " unfinished generations");
+        return new IssuanceJournal(file, ch, List.copyOf(unfinished), metrics);
+    }
+
+    /** Ключи, которые были запрошены, но не завершились до прошлой остановки. */
+    List<String> recovered() {
+        return recovered;
+    }
+
+    /** Генерация по ключу поставлена в очередь. Возвращает номер записи для {@link #awaitDurable}. */
+    long requested(String key) {
+        return append(REQUESTED, key);
+    }
+
+    /** Генерация по ключу завершилась (успешно или нет): повторять её после перезапуска не нужно. */
+    long done(String key) {
+        return append(DONE, key);
+    }
+
+    private long append(byte type, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Journal key is too long");
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(bytes);
+        synchronized (lock) {
+            if (closed || failure != null) return appended;
+            if (type == REQUESTED) pending.add(key);
+            else pending.remove(key);
+            if (active.remaining() < HEADER_LEN + bytes.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + HEADER_LEN + bytes.length));
+                active = bigger.put(active.flip());
+            }
+            active.put(type).putShort((short) bytes.length).putInt((int) crc.getValue()).put(bytes);
+            records.increment();
+            lock.notifyAll();
+            return ++appended;
+        }
+    }
+
+    /**
+     * Ждёт, пока запись с номером seq (и все до неё) окажется на диске.
+     * Бросает IOException, если журнал перестал писать раньше, чем она туда попала.
+     */
+    void awaitDurable(long seq) throws InterruptedException, IOException {
+        synchronized (lock) {
+            while (durable < seq && !closed && failure == null) lock.wait();
+            if (durable < seq && failure != null) throw new IOException("Issuance journal " + file + " failed", failure);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long upTo;
+            synchronized (lock) {
+                while (active.position() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (active.position() == 0) return; // закрыт и всё записано
+                batch = active;
+                active = spare;
+                upTo = appended;
+            }
+            batch.flip();
+            try {
+                while (batch.hasRemaining()) channel.write(batch);
+                long t0 = System.nanoTime();
+                channel.force(false);
+                syncNanos.recordSince(t0);
+                syncs.increment();
+                if (channel.size() > COMPACT_BYTES) compact();
+            } catch (IOException e) {
+                // Пачка могла не дойти до диска: durable не двигаем, журнал останавливается.
+                // Журнал — подстраховка: без него сервер работает как раньше, просто без восстановления
+                LOG.log(Level.WARNING, "Failed to write issuance journal " + file + ", journaling stopped", e);
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            batch.clear();
+            spare = batch;
+            synchronized (lock) {
+                durable = upTo;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Переписывает журнал, оставляя только незавершённые ключи. Выполняется в нити записи. */
+    private void compact() throws IOException {
+        List<String> snapshot;
+        synchronized (lock) {
+            // Записи, накопившиеся в active после снимка, допишутся уже в новый файл
+            snapshot = new ArrayList<>(pending);
+        }
+        channel.close();
+        channel = rewrite(file, snapshot);
+        LOG.info(() -> "Compacted issuance journal " + file + " to " + snapshot.size() + " unfinished generations");
+    }
+
+    private static FileChannel rewrite(Path file, Iterable<String> keys) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 crc = new CRC32();
+            for (String key : keys) {
+                byte[] bytes = key.getBytes(StandardCharsets.US_ASCII);
+                crc.reset();
+                crc.update(REQUESTED);
+                crc.update(bytes);
+                ByteBuffer rec = ByteBuffer.allocate(HEADER_LEN + bytes.length)
+                        .put(REQUESTED).putShort((short) bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+                while (rec.hasRemaining()) out.write(rec);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /** Дописывает накопленное и закрывает файл. */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,58 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+import nsu.kochanov.server.GenerationScheduler.Priority;
+
+/**
+ * Разобранный запрос: имя субъекта и параметры выпуска.
+ * <p>
+ * В протоколе после имени могут идти параметры вида {@code key=value}, каждый после байта
+ * {@link Protocol#OPTION_SEPARATOR}: например {@code alice 0x1F profile=ec-p256 0x00}.
+ * Ключ кэша (он же ключ хранилища и журнала) всегда содержит профиль и CA, в том числе
+ * подставленные по умолчанию: после перезапуска с другим {@code --profile} или CA запрос без
+ * параметров не получит пару старого профиля, а явный {@code profile=} — совпадёт с тем же
+ * ключом, что и запрос по умолчанию. Приоритет на результат не влияет и в ключ не входит.
+ * issuer — идентификатор CA (из хранилища или отпечаток CA из PEM), названный в запросе;
+ * null — CA по умолчанию на момент подписи: после перезагрузки CA генерации из очереди подпишет
+ * уже новый CA по умолчанию, а не исчезнувший старый. В ключ кэша при этом входит CA по умолчанию
+ * на момент запроса. client — ключ справедливой очереди исходного клиента в запросе,
+ * пересланном другим узлом кластера (null — не задан); в ключ кэша не входит.
+ */
+record IssueRequest(String name, KeyProfile profile, String issuer, Priority priority, String client, String cacheKey) {
+
+    static IssueRequest parse(String token, KeyProfile defaultProfile, String defaultIssuer) {
+        int sep = token.indexOf(Protocol.OPTION_SEPARATOR);
+        if (sep < 0) {
+            return new IssueRequest(token, defaultProfile, null, Priority.NORMAL, null, cacheKey(token, defaultProfile, defaultIssuer));
+        }
+        String name = token.substring(0, sep);
+        KeyProfile profile = defaultProfile;
+        String issuer = null;
+        Priority priority = Priority.NORMAL;
+        String client = null;
+        for (String option : token.substring(sep + 1).split(String.valueOf(Protocol.OPTION_SEPARATOR))) {
+            int eq = option.indexOf('=');
+            String k = eq < 0 ? option : option.substring(0, eq);
+            String v = eq < 0 ? "" : option.substring(eq + 1);
+            switch (k) {
+                case "profile" -> profile = KeyProfile.parse(v);
+                case "issuer" -> issuer = v;
+                case "priority" -> priority = parsePriority(v);
+                case "client" -> client = v;
+                default -> throw new IllegalArgumentException("Unknown request option '" + k + "'");
+            }
+        }
+        return new IssueRequest(name, profile, issuer, priority, client, cacheKey(name, profile, issuer != null ? issuer : defaultIssuer));
+    }
+
+    private static Priority parsePriority(String v) {
+        for (Priority p : Priority.values()) {
+            if (p.name().equalsIgnoreCase(v)) return p;
+        }
+        throw new IllegalArgumentException("Unknown priority '" + v + "'");
+    }
+
+    private static String cacheKey(String name, KeyProfile profile, String issuer) {
+        return name + Protocol.OPTION_SEPARATOR + "profile=" + profile.id() + Protocol.OPTION_SEPARATOR + "issuer=" + issuer;
+    }
+}
@@ -0,0 +1,114 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.Metrics;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Запас заранее сгенерированных ключевых пар.
+ * Пополняется на свободных нитях пула генерации: когда размер опускается до lowWatermark,
+ * запускаются цепочки пополнения, которые генерируют по одной паре до highWatermark.
+ * Цепочка останавливается, как только нити понадобились под клиентские запросы.
+ */
+final class KeyPairPool {
+    private static final Logger LOG = Logger.getLogger(KeyPairPool.class.getName());
+
+    interface Generator {
+        KeyPair generate() throws Exception;
+    }
+
+    private final BlockingQueue<KeyPair> ready;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final Executor executor;
+    private final Generator generator;
+    private final IntSupplier spareThreads; // сколько нитей пула не занято клиентскими задачами
+    private final AtomicInteger refillers = new AtomicInteger();
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder generated;
+
+    KeyPairPool(int lowWatermark, int highWatermark, Executor executor, Generator generator,
+                IntSupplier spareThreads, Metrics metrics) {
+        if (lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("Invalid key pool watermarks: low=" + lowWatermark + ", high=" + highWatermark);
+        }
+        this.ready = new ArrayBlockingQueue<>(Math.max(1, highWatermark));
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.executor = executor;
+        this.generator = generator;
+        this.spareThreads = spareThreads;
+        this.hits = metrics.counter("keypool.hits");
+        this.misses = metrics.counter("keypool.misses");
+        this.generated = metrics.counter("keypool.generated");
+        metrics.gauge("keypool.size", ready::size);
+    }
+
+    boolean enabled() {
+        return highWatermark > 0;
+    }
+
+    /** Готовая пара из запаса или null, если запас пуст (тогда вызывающий генерирует сам). */
+    KeyPair poll() {
+        if (!enabled()) return null;
+        KeyPair kp = ready.poll();
+        if (kp != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            LOG.fine("Key pool is empty, generating inline");
+        }
+        maybeRefill();
+        return kp;
+    }
+
+    /** Запускает пополнение, если запас ниже нижней отметки и есть свободные нити. */
+    void maybeRefill() {
+        if (!enabled() || ready.size() > lowWatermark) return;
+        while (true) {
+            int active = refillers.get();
+            if (ready.size() + active >= highWatermark || active >= spareThreads.getAsInt()) return;
+            if (refillers.compareAndSet(active, active + 1) && !schedule()) return;
+        }
+    }
+
+    private void refillStep() {
+        try {
+            KeyPair kp = generator.generate();
+            if (ready.offer(kp)) generated.increment();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Key pool refill failed", e);
+            refillers.decrementAndGet();
+            return;
+        }
+        // Продолжаем цепочку, пока не достигли верхней отметки и нить не нужна клиентам
+        // (сама эта цепочка входит в refillers, поэтому сравнение нестрогое).
+        if (ready.size() < highWatermark && refillers.get() <= spareThreads.getAsInt()) {
+            schedule();
+        } else {
+            refillers.decrementAndGet();
+        }
+    }
+
+    /** Ставит следующий шаг цепочки; если очередь генерации полна, цепочка обрывается. */
+    private boolean schedule() {
+        try {
+            executor.execute(this::refillStep);
+            return true;
+        } catch (RejectedExecutionException e) {
+            refillers.decrementAndGet();
+            return false;
+        }
+    }
+}
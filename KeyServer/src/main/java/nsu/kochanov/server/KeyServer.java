@@ -1,160 +1,720 @@
 package nsu.kochanov.server;
 
-import nsu.kochanov.crypto.CertUtils;
+import nsu.kochanov.crypto.KeyProfile;
 import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.crypto.ParallelRsaKeyGenerator;
+import nsu.kochanov.crypto.PemUtils;
+import nsu.kochanov.metrics.LatencyHistogram;
+import nsu.kochanov.metrics.Metrics;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class KeyServer {
     private static final Logger LOG = Logger.getLogger(KeyServer.class.getName());
     private static final int MAX_NAME_LEN = 4096;
+    static final int READ_BUFFER_SIZE = 8192;
     private static final byte ZERO = 0;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    static final long STATS_INTERVAL_MS = 60_000;
+    static final int MAX_PIPELINED = 1024; // незавершённых запросов на одно соединение
+
+    private static final byte MODE_UNKNOWN = 0;
+    private static final byte MODE_SINGLE = 1;
+    private static final byte MODE_PIPELINED = 2;
+
+    // Какой дедлайн сейчас взведён у соединения
+    private static final byte DEADLINE_NONE = 0;
+    private static final byte DEADLINE_READ = 1;  // ждём от клиента полное имя
+    private static final byte DEADLINE_WRITE = 2; // ждём, пока клиент заберёт ответ
 
     private final int port;
-    private final int generatorThreads;
-    private final KeyStoreService keyStoreService;
+    private volatile int generatorThreads;           // меняется в reload
+    private volatile KeyStoreService keyStoreService; // заменяется в reload
+    private final KeyProfile defaultProfile;
+    private final Metrics metrics = new Metrics();
 
-    private final Map<String, CompletableFuture<Result>> nameToFuture = new ConcurrentHashMap<>();
-    private final ExecutorService generatorPool;
-    private final Queue<Runnable> ioTasks = new ConcurrentLinkedQueue<>();
+    private final ResultCache nameToFuture;
+    private final ThreadPoolExecutor generatorPool;
+    private final GenerationScheduler scheduler;
+    private final PoolSizeController poolController; // null — размер пула задан вручную
+    private final boolean fairByPrefix;
+    private final boolean demoteOrphans; // иначе брошенные задачи снимаются с очереди
+    private final LongAdder orphaned;
+    private final LongAdder savedGenerations;
+    private final LongAdder demotedGenerations;
+    private final LongAdder wastedGenerations;
+    private final AtomicInteger activeGenerations = new AtomicInteger(); // клиентские задачи в пуле
+    private final KeyPairPool keyPairPool;
+    private final ParallelRsaKeyGenerator parallelRsa; // null — генератор JDK
+    private final ResultStore store; // null, если хранилище не задано
+    private final IssuanceJournal journal; // null, если журнал не включён
+    private final LongAdder storeHits;
+    // Чтение записей хранилища с диска: своя пара нитей, чтобы попадания не стояли
+    // в очереди пула генерации за многосекундными задачами
+    private final ExecutorService storeReader;
+    private final int ioThreads;
+    private final LongAdder accepted;
+    private final BufferPool readPool;
+    private final long readTimeoutNanos;  // 0 — без ограничения
+    private final long writeTimeoutNanos; // 0 — без ограничения
+    private final LongAdder readTimeouts;
+    private final LongAdder writeTimeouts;
+    private final LongAdder bytesWritten;
+    private final LatencyHistogram keygenNanos;
+    private final LatencyHistogram signNanos;
+    private final LatencyHistogram pemNanos;
+    private final LatencyHistogram responseNanos; // от разбора имени до постановки ответа в очередь записи
+    private final ClusterConfig.Node self; // null вне кластера
+    private final HashRing ring;           // null вне кластера
+    private final Map<String, PeerClient> peers = new HashMap<>();
+    private final Set<InetAddress> peerAddresses = new HashSet<>(); // откуда принимаем FORWARDED
+    private final Set<InetAddress> highPriorityAddresses = new HashSet<>(); // откуда принимаем priority=high
+    private final LongAdder forwarded;
+    private final LongAdder forwardFailed;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private EventLoop[] loops;
+    private final long drainTimeoutNanos;
+    private volatile boolean draining;
+    private final CountDownLatch terminated = new CountDownLatch(1);
 
-    public KeyServer(int port, int generatorThreads, KeyStoreService keyStoreService) {
-        this.port = port;
-        this.generatorThreads = generatorThreads;
+    public KeyServer(ServerConfig config, KeyStoreService keyStoreService) throws IOException {
+        if (config.clusterConfig != null) {
+            ClusterConfig cluster = ClusterConfig.load(config.clusterConfig);
+            this.self = cluster.node(config.nodeId);
+            this.ring = new HashRing(cluster.nodes());
+            for (ClusterConfig.Node n : cluster.nodes()) {
+                if (n == self) continue;
+                peers.put(n.id(), new PeerClient(n));
+                if (n.address().getAddress() != null) peerAddresses.add(n.address().getAddress());
+            }
+            this.port = self.address().getPort();
+        } else {
+            this.self = null;
+            this.ring = null;
+            this.port = config.port;
+        }
+        for (String host : config.highPriorityFrom) {
+            if (!host.isBlank()) highPriorityAddresses.add(InetAddress.getByName(host.strip()));
+        }
+        this.generatorThreads = config.adaptiveThreads
+                ? Math.max(config.minThreads, Math.min(config.maxThreads, config.generatorThreads))
+                : config.generatorThreads;
+        this.ioThreads = config.ioThreads;
         this.keyStoreService = keyStoreService;
-        this.generatorPool = Executors.newFixedThreadPool(generatorThreads, r -> {
+        this.defaultProfile = config.defaultProfile;
+        this.nameToFuture = new ResultCache(config.cacheMaxBytes, TimeUnit.SECONDS.toNanos(config.cacheMaxIdleSeconds), metrics);
+        // Пул фиксированного размера, но через ThreadPoolExecutor: reload меняет число нитей на ходу
+        this.generatorPool = new ThreadPoolExecutor(generatorThreads, generatorThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
             Thread t = new Thread(r, "keygen-thread");
             t.setDaemon(true);
             return t;
         });
+        this.scheduler = new GenerationScheduler(generatorPool, config.queueCapacity, metrics);
+        this.poolController = !config.adaptiveThreads ? null : new PoolSizeController(
+                config.minThreads, config.maxThreads, scheduler,
+                () -> generatorThreads, generatorPool::getActiveCount, this::resizeGenerators, metrics);
+        this.fairByPrefix = switch (config.fairBy) {
+            case "address" -> false;
+            case "prefix" -> true;
+            default -> throw new IllegalArgumentException("--fair-by must be 'address' or 'prefix'");
+        };
+        this.demoteOrphans = switch (config.orphanPolicy) {
+            case "drop" -> false;
+            case "demote" -> true;
+            default -> throw new IllegalArgumentException("--orphan-policy must be 'drop' or 'demote'");
+        };
+        this.parallelRsa = switch (config.rsaEngine) {
+            case "jdk" -> null;
+            case "parallel" -> new ParallelRsaKeyGenerator(Runtime.getRuntime().availableProcessors());
+            default -> throw new IllegalArgumentException("--rsa-engine must be 'jdk' or 'parallel'");
+        };
+        this.orphaned = metrics.counter("generation.orphaned");
+        this.savedGenerations = metrics.counter("generation.saved");
+        this.demotedGenerations = metrics.counter("generation.demoted");
+        this.wastedGenerations = metrics.counter("generation.wasted");
+        this.keygenNanos = metrics.histogram("keygen.nanos");
+        this.signNanos = metrics.histogram("sign.nanos");
+        this.pemNanos = metrics.histogram("pem.nanos");
+        this.responseNanos = metrics.histogram("response.nanos");
+        this.bytesWritten = metrics.counter("bytes.written");
+        this.keyPairPool = new KeyPairPool(
+                config.effectiveKeyPoolLow(),
+                config.effectiveKeyPoolHigh(),
+                r -> scheduler.submit(GenerationScheduler.Priority.LOW, "keypool", r),
+                () -> generateKeyPair(defaultProfile, 0), // запас пополняется фоном, не занимая чужие ядра
+                () -> generatorThreads - activeGenerations.get(),
+                metrics
+        );
+        this.store = config.storeDir == null ? null : ResultStore.open(config.storeDir);
+        this.storeHits = metrics.counter("store.hits");
+        this.storeReader = store == null ? null : Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "store-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        this.journal = config.journal ? IssuanceJournal.open(config.storeDir, metrics) : null;
+        this.accepted = metrics.counter("connections.accepted");
+        this.readPool = new BufferPool(READ_BUFFER_SIZE, 64, metrics);
+        this.readTimeoutNanos = TimeUnit.SECONDS.toNanos(config.readTimeoutSeconds);
+        this.writeTimeoutNanos = TimeUnit.SECONDS.toNanos(config.writeTimeoutSeconds);
+        this.readTimeouts = metrics.counter("connections.timeout.read");
+        this.writeTimeouts = metrics.counter("connections.timeout.write");
+        if (store != null) metrics.gauge("store.entries", store::size);
+        this.forwarded = metrics.counter("cluster.forwarded");
+        this.forwardFailed = metrics.counter("cluster.forward.failed");
+        this.drainTimeoutNanos = TimeUnit.SECONDS.toNanos(config.drainTimeoutSeconds);
+        metrics.gauge("connections.open", openConnections::get);
+        metrics.gauge("generator.threads", () -> generatorThreads);
     }
 
-    private record Result(KeyPair keyPair, X509Certificate certificate) {}
+    public Metrics metrics() {
+        return metrics;
+    }
 
     private static final class ConnState {
         final SocketChannel channel;
-        final ByteBuffer readBuf = ByteBuffer.allocate(8192);
-        ByteBuffer writeBuf; // заполняется PEMами для ответа
-        boolean closed;
-        String name; // когда получим 0-терминатор
+        final EventLoop loop;
+        final String client; // адрес клиента — ключ справедливой очереди
+        ByteBuffer readBuf; // из readPool, только пока в нём недоразобранные байты
+        // Всё ниже меняется только в IO-нити соединения
+        final ArrayDeque<Object> out = new ArrayDeque<>(); // ByteBuffer или FileRegion, ожидающие отправки
+        byte mode = MODE_UNKNOWN;
+        int nextRequestId;
+        int pending; // запросы, ответ на которые ещё не поставлен в out
+        boolean inputClosed;
+        boolean parsing; // внутри processInput: готовые из кэша ответы приходят синхронно
+        boolean forwarded; // соединение от другого узла кластера (по адресу из состава): запросы не пересылаем дальше
+        int batchRemaining = -1; // в пакетном режиме — сколько имён ещё не прочитано
+        String name; // в обычном режиме — имя из единственного запроса
+        final ArrayList<Generation> waiting = new ArrayList<>(); // незавершённые генерации, которые ждёт соединение
+        TimingWheel.Timeout timeout; // дедлайн в колесе своей IO-нити
+        byte deadline = DEADLINE_NONE;
 
-        ConnState(SocketChannel channel) {
+        ConnState(SocketChannel channel, EventLoop loop, String client) {
             this.channel = channel;
+            this.loop = loop;
+            this.client = client;
         }
     }
 
+    /**
+     * Принимающая нить (boss): только accept, соединения раздаются рабочим {@link EventLoop}
+     * по кругу. Здесь же раз в минуту чистится кэш и пишется статистика.
+     * Возвращается после {@link #shutdown()}, когда сервер остановлен.
+     */
     public void start() throws IOException {
+        try {
+            listen();
+            drain(); // порт уже закрыт: новые соединения получают отказ от ОС
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    private void listen() throws IOException {
+        loops = new EventLoop[ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this, i, READ_BUFFER_SIZE);
+            loops[i].start();
+        }
         try (Selector selector = Selector.open();
              ServerSocketChannel server = ServerSocketChannel.open()) {
             server.configureBlocking(false);
+            recover(); // до открытия порта: незавершённые генерации встают в очередь первыми
             server.bind(new InetSocketAddress(port));
             server.register(selector, SelectionKey.OP_ACCEPT);
-            LOG.info(() -> "Listening on tcp://0.0.0.0:" + port);
-
-            while (true) {
-                // Выполним накопленные IO-задачи (например, переключение на запись)
-                Runnable task;
-                while ((task = ioTasks.poll()) != null) task.run();
+            LOG.info(() -> "Listening on tcp://0.0.0.0:" + port + " with " + loops.length + " IO threads"
+                    + (self == null ? "" : " as cluster node '" + self.id() + "' (" + (peers.size() + 1) + " nodes)"));
+            keyPairPool.maybeRefill();
 
+            int next = 0;
+            long nextStatsAt = System.currentTimeMillis() + STATS_INTERVAL_MS;
+            long nextAdaptAt = System.currentTimeMillis() + PoolSizeController.INTERVAL_MS;
+            while (!draining) {
                 selector.select(250);
+                selector.selectedKeys().clear();
 
-                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-                while (it.hasNext()) {
-                    SelectionKey key = it.next();
-                    it.remove();
-                    if (!key.isValid()) continue;
-
-                    if (key.isAcceptable()) {
-                        handleAccept(server, selector);
-                    } else if (key.isReadable()) {
-                        handleRead(key, selector);
-                    } else if (key.isWritable()) {
-                        handleWrite(key);
-                    }
+                // Забираем всю пачку ожидающих соединений за один проход
+                SocketChannel ch;
+                while ((ch = server.accept()) != null) {
+                    ch.configureBlocking(false);
+                    loops[next].register(ch);
+                    next = (next + 1) % loops.length;
+                    accepted.increment();
+                }
+
+                if (poolController != null && System.currentTimeMillis() >= nextAdaptAt) {
+                    nextAdaptAt = System.currentTimeMillis() + PoolSizeController.INTERVAL_MS;
+                    poolController.tick();
+                }
+
+                if (System.currentTimeMillis() >= nextStatsAt) {
+                    nextStatsAt = System.currentTimeMillis() + STATS_INTERVAL_MS;
+                    nameToFuture.expire();
+                    LOG.info(() -> "Stats: " + metrics.snapshot());
                 }
             }
         }
     }
 
-    private void handleAccept(ServerSocketChannel server, Selector selector) throws IOException {
-        SocketChannel ch = server.accept();
-        if (ch == null) return;
-        ch.configureBlocking(false);
-        SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
-        key.attach(new ConnState(ch));
+    /**
+     * Начинает плавную остановку и сразу возвращается: принимающая нить закрывает порт,
+     * новые генерации отклоняются (как при переполненной очереди), открытые соединения
+     * дожидаются своих ответов и закрываются. Начатые и уже стоящие в очереди генерации
+     * доводятся до конца, журнал и хранилище сбрасываются на диск. Всё, что не уложилось
+     * в drainTimeout, обрывается; незавершённое останется в журнале. Ждать — {@link #awaitTermination()}.
+     */
+    public void shutdown() {
+        draining = true;
+    }
+
+    /** Ждёт, пока {@link #start()} остановит сервер. */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+
+    private void drain() {
+        long t0 = System.nanoTime();
+        long deadline = t0 + drainTimeoutNanos;
+        LOG.info(() -> "Draining: " + openConnections.get() + " connections, " + activeGenerations.get()
+                + " generations in progress, " + scheduler.queued() + " queued");
+        scheduler.shutdown();
+        for (EventLoop loop : loops) loop.execute(() -> drainConnections(loop));
+        boolean drained = awaitDrained(deadline);
+        if (drained) {
+            generatorPool.shutdown(); // в пуле могли остаться пополнения запаса пар
+        } else {
+            LOG.warning(() -> "Drain timeout: dropping " + openConnections.get() + " connections and "
+                    + activeGenerations.get() + " generations" + (journal != null ? " (kept in the journal)" : ""));
+            generatorPool.shutdownNow();
+        }
+        try {
+            // Журнал закрывается до обрыва соединений: иначе брошенные задачи из очереди
+            // отметились бы в нём завершёнными и не восстановились бы после перезапуска
+            if (journal != null) journal.close();
+            for (EventLoop loop : loops) loop.execute(() -> closeAll(loop));
+            generatorPool.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (store != null) {
+                storeReader.shutdown();
+                storeReader.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                store.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to close storage", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.info(() -> "Stopped in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) + " ms");
+    }
+
+    /** Ждёт, пока не останется соединений и генераций; false — вышел срок. */
+    private boolean awaitDrained(long deadline) {
+        try {
+            while (openConnections.get() > 0 || activeGenerations.get() > 0 || scheduler.queued() > 0) {
+                if (System.nanoTime() >= deadline) return false;
+                Thread.sleep(20);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Соединения нити больше не читают: недочитанное имя отбрасывается, бездействующие
+     * закрываются сразу, остальные — как только отправят ответы на уже принятые запросы.
+     */
+    private void drainConnections(EventLoop loop) {
+        for (SelectionKey key : List.copyOf(loop.keys())) {
+            if (!key.isValid() || !(key.attachment() instanceof ConnState st)) continue;
+            st.inputClosed = true;
+            releaseReadBuf(st);
+            if (st.pending == 0 && st.out.isEmpty()) closeKey(key);
+            else updateInterest(key, st);
+        }
+    }
+
+    private void closeAll(EventLoop loop) {
+        for (SelectionKey key : List.copyOf(loop.keys())) closeKey(key);
+        try {
+            loop.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Failed to close IO loop", e);
+        }
+    }
+
+    /**
+     * Меняет на ходу число нитей генерации и/или CA, не закрывая порт (null — оставить как было).
+     * Лишние нити пула завершаются, когда освободятся; генерации, ещё не дошедшие до подписи,
+     * подпишет уже новый CA. Пары, выданные раньше, остаются в кэше и хранилище.
+     * С {@code --adaptive-threads} размером пула управляет регулятор, и threads отклоняется.
+     */
+    public synchronized void reload(Integer threads, KeyStoreService newKeyStore) {
+        if (draining) throw new IllegalStateException("Server is shutting down");
+        if (threads != null && poolController != null) {
+            throw new IllegalStateException("threads are managed by --adaptive-threads");
+        }
+        if (threads != null) {
+            if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+            int old = generatorThreads;
+            resizeGenerators(threads);
+            LOG.info(() -> "Generator threads: " + old + " -> " + threads);
+        }
+        if (newKeyStore != null) {
+            keyStoreService = newKeyStore;
+            LOG.info(() -> "CA reloaded, default issuer '" + newKeyStore.getIssuerDn() + "'");
+        }
+    }
+
+    /** Меняет размер пула генерации; из reload и из регулятора размера. */
+    private synchronized void resizeGenerators(int threads) {
+        // core не может превышать max: при росте сначала max, при уменьшении сначала core
+        if (threads > generatorThreads) {
+            generatorPool.setMaximumPoolSize(threads);
+            generatorPool.setCorePoolSize(threads);
+        } else {
+            generatorPool.setCorePoolSize(threads);
+            generatorPool.setMaximumPoolSize(threads);
+        }
+        generatorThreads = threads;
+        keyPairPool.maybeRefill(); // новые нити могут пополнить запас
+    }
+
+    void accepted(SelectionKey key, EventLoop loop) {
+        openConnections.incrementAndGet();
+        SocketChannel ch = (SocketChannel) key.channel();
+        ConnState st = new ConnState(ch, loop, remoteHost(ch));
+        st.timeout = new TimingWheel.Timeout(() -> timedOut(key, st));
+        key.attach(st);
+        armDeadline(st, false);
         LOG.fine(() -> "Accepted connection from " + safeRemote(ch));
     }
 
-    private void handleRead(SelectionKey key, Selector selector) {
+    void handleRead(SelectionKey key) {
         ConnState st = (ConnState) key.attachment();
         try {
-            int read = st.channel.read(st.readBuf);
-            if (read == -1) { closeKey(key); return; }
-            st.readBuf.flip();
-            // Ищем нулевой байт
-            int zeroPos = -1;
-            for (int i = st.readBuf.position(); i < st.readBuf.limit(); i++) {
-                if (st.readBuf.get(i) == ZERO) { zeroPos = i; break; }
-            }
-            if (zeroPos == -1) {
-                if (st.readBuf.remaining() > MAX_NAME_LEN) { closeKey(key); return; }
-                st.readBuf.compact();
+            // Пока хвоста нет, читаем в общий буфер нити; иначе дочитываем в занятый буфер
+            ByteBuffer buf = st.readBuf != null ? st.readBuf : st.loop.readScratch();
+            int read = st.channel.read(buf);
+            if (read == -1) {
+                buf.clear();
+                releaseReadBuf(st);
+                st.inputClosed = true;
+                // В обычном режиме клиент, не дождавшись ответа, ушёл; в режиме нескольких
+                // запросов это штатное завершение — досылаем то, что ещё в работе
+                if (st.mode != MODE_PIPELINED || (st.pending == 0 && st.out.isEmpty())) {
+                    closeKey(key);
+                } else {
+                    updateInterest(key, st);
+                }
                 return;
             }
-            int len = zeroPos - st.readBuf.position();
-            byte[] nameBytes = new byte[len];
-            st.readBuf.get(nameBytes);
-            st.readBuf.get(); // consume zero
-            st.readBuf.compact();
-            st.name = new String(nameBytes); // ASCII по условию
-            LOG.info(() -> "Request received for name='" + st.name + "'");
-
-            CompletableFuture<Result> fut = nameToFuture.computeIfAbsent(st.name, n -> {
-                CompletableFuture<Result> f = new CompletableFuture<>();
-                submitGeneration(n, f);
-                return f;
-            });
+            processInput(key, st, buf);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "IO error on read", e);
+            closeKey(key);
+        }
+    }
 
-            fut.whenComplete((res, err) -> {
-                if (err != null) { safeClose(st.channel); return; }
-                try {
-                    String pemPriv = nsu.kochanov.crypto.PemUtils.toPem(res.keyPair().getPrivate());
-                    String pemCert = nsu.kochanov.crypto.PemUtils.toPem(res.certificate());
-                    byte[] payload = (pemPriv + pemCert).getBytes();
-                    st.writeBuf = ByteBuffer.wrap(payload);
-                    schedule(selector, () -> key.interestOps(SelectionKey.OP_WRITE));
-                    LOG.fine(() -> "Prepared response for name='" + st.name + "' (" + payload.length + " bytes)");
-                } catch (IOException e) {
-                    LOG.log(Level.WARNING, "Failed to prepare PEM response", e);
-                    safeClose(st.channel);
+    /**
+     * Разбирает из buf (общего буфера нити или занятого соединением) все полностью пришедшие имена.
+     * Недоразобранный хвост переносится в буфер из пула; опустевший буфер возвращается в пул.
+     */
+    private void processInput(SelectionKey key, ConnState st, ByteBuffer buf) throws IOException {
+        buf.flip();
+        st.parsing = true;
+        try {
+            if (st.mode == MODE_UNKNOWN && buf.hasRemaining()) {
+                byte first = buf.get(buf.position());
+                if (first == Protocol.FORWARDED && !from(st, peerAddresses)) {
+                    // Узлу доверяют больше, чем клиенту (client=, нет дедлайна на ожидание) —
+                    // этот режим только для адресов из состава кластера
+                    throw new IOException("Forwarded connection from " + st.client + ", which is not a cluster node");
                 }
-            });
+                if (first == Protocol.PIPELINED || first == Protocol.FORWARDED) {
+                    buf.get();
+                    st.mode = MODE_PIPELINED;
+                    st.forwarded = first == Protocol.FORWARDED;
+                } else if (first == Protocol.BATCH) {
+                    if (buf.remaining() >= Protocol.BATCH_HEADER_LEN) {
+                        buf.get();
+                        int count = buf.getInt();
+                        if (count <= 0 || count > Protocol.MAX_BATCH) throw new IOException("Invalid batch size " + count);
+                        st.mode = MODE_PIPELINED;
+                        st.batchRemaining = count;
+                    } // иначе ждём остаток заголовка
+                } else {
+                    st.mode = MODE_SINGLE;
+                }
+            }
+            while (buf.hasRemaining() && st.mode != MODE_UNKNOWN) {
+                if ((st.mode == MODE_SINGLE && st.name != null) || st.batchRemaining == 0) {
+                    buf.position(buf.limit()); // после единственного имени (или всего пакета) остальное игнорируем
+                    break;
+                }
+                if (st.mode == MODE_PIPELINED && st.pending >= MAX_PIPELINED) break; // дочитаем, когда разгребём
+                String name = nextName(buf);
+                if (name == null) break;
+                request(key, st, name);
+                // Пакет прочитан целиком: дальше как после закрытия клиентом записи —
+                // досылаем ответы и закрываем соединение
+                if (st.batchRemaining > 0 && --st.batchRemaining == 0) st.inputClosed = true;
+            }
+        } finally {
+            buf.compact();
+            st.parsing = false;
+            if (buf != st.readBuf) {
+                if (buf.position() > 0) {
+                    st.readBuf = readPool.acquire();
+                    st.readBuf.put(buf.flip());
+                }
+                buf.clear();
+            } else if (buf.position() == 0) {
+                releaseReadBuf(st);
+            }
+        }
+        updateInterest(key, st);
+    }
+
+    private static boolean from(ConnState st, Set<InetAddress> addresses) {
+        try {
+            return st.channel.getRemoteAddress() instanceof InetSocketAddress a && addresses.contains(a.getAddress());
         } catch (IOException e) {
-            LOG.log(Level.FINE, "IO error on read", e);
+            return false;
+        }
+    }
+
+    /** Следующее имя до нулевого байта или null, если терминатор ещё не пришёл. */
+    static String nextName(ByteBuffer buf) throws IOException {
+        int zeroPos = -1;
+        for (int i = buf.position(); i < buf.limit(); i++) {
+            if (buf.get(i) == ZERO) { zeroPos = i; break; }
+        }
+        if (zeroPos == -1) {
+            if (buf.remaining() > MAX_NAME_LEN) throw new IOException("Name is too long");
+            return null;
+        }
+        int len = zeroPos - buf.position();
+        byte[] nameBytes = new byte[len];
+        buf.get(nameBytes);
+        buf.get(); // consume zero
+        return new String(nameBytes, StandardCharsets.US_ASCII); // ASCII по условию
+    }
+
+    private void request(SelectionKey key, ConnState st, String token) {
+        long received = System.nanoTime();
+        int id = st.nextRequestId++;
+        st.pending++;
+        if (st.mode == MODE_SINGLE) st.name = token;
+        LOG.info(() -> "Request received for name='" + token + "'");
+
+        CompletableFuture<Result> fut;
+        try {
+            KeyStoreService ks = keyStoreService;
+            IssueRequest req = IssueRequest.parse(token, defaultProfile, ks.defaultIssuerId());
+            if (!ks.hasIssuer(req.issuer())) throw new IllegalArgumentException("Unknown issuer '" + req.issuer() + "'");
+            if (req.client() != null && !st.forwarded) throw new IllegalArgumentException("Option 'client' is accepted only from cluster peers");
+            // high обгоняет всех строго, поэтому он только для доверенных адресов; пересланный запрос
+            // уже проверил узел, к которому пришёл клиент
+            if (req.priority() == GenerationScheduler.Priority.HIGH && !st.forwarded && !from(st, highPriorityAddresses)) {
+                throw new IllegalArgumentException("Priority 'high' is not allowed for this client");
+            }
+            while (true) {
+                fut = nameToFuture.get(req.cacheKey(), n -> {
+                    // Чужой ключ выпускает его узел-владелец: пересылаем, ответ попадёт и в наш кэш
+                    ClusterConfig.Node owner = ring == null || st.forwarded ? self : ring.owner(n);
+                    if (owner != self) return forward(owner, token + Protocol.OPTION_SEPARATOR + "client=" + clientKey(st, req));
+                    // Сначала смотрим в дисковое хранилище: уже проверенная запись отдаётся сразу,
+                    // первое чтение записи после запуска идёт с диска — не в IO-нити
+                    if (store != null) {
+                        Result stored = store.peek(n);
+                        if (stored != null) {
+                            storeHits.increment();
+                            return CompletableFuture.completedFuture(stored);
+                        }
+                        if (store.contains(n)) return loadStored(req, clientKey(st, req));
+                    }
+                    Generation g = new Generation(req, scheduler);
+                    submitGeneration(req, clientKey(st, req), g);
+                    return g;
+                });
+                if (!(fut instanceof Generation g)) break;
+                if (g.retain()) {
+                    st.waiting.add(g);
+                    break;
+                }
+                // Брошенную задачу только что сняли с очереди: её future сейчас завершится
+                // и уйдёт из кэша, тогда loader создаст новую
+                Thread.onSpinWait();
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.fine(() -> "Rejected request '" + token + "': " + e.getMessage());
+            fut = CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<Result> f = fut;
+        f.whenComplete((res, err) -> {
+            if (st.loop.inLoop()) completed(key, st, f, received, id, token, res, err);
+            else st.loop.execute(() -> completed(key, st, f, received, id, token, res, err));
+        });
+    }
+
+    /**
+     * Читает запись хранилища в нити storeReader. Если запись оказалась повреждённой,
+     * пара генерируется заново, как при промахе.
+     */
+    private CompletableFuture<Result> loadStored(IssueRequest req, String client) {
+        return CompletableFuture.supplyAsync(() -> store.load(req.cacheKey()), storeReader)
+                .thenCompose(stored -> {
+                    if (stored != null) {
+                        storeHits.increment();
+                        return CompletableFuture.completedFuture(stored);
+                    }
+                    Generation g = new Generation(req, scheduler);
+                    submitGeneration(req, client, g);
+                    return g;
+                });
+    }
+
+    private CompletableFuture<Result> forward(ClusterConfig.Node owner, String token) {
+        forwarded.increment();
+        LOG.fine(() -> "Forwarding '" + token + "' to node '" + owner.id() + "'");
+        CompletableFuture<Result> f = peers.get(owner.id()).forward(token);
+        f.whenComplete((res, err) -> {
+            if (err != null) forwardFailed.increment();
+        });
+        return f;
+    }
+
+    private void completed(SelectionKey key, ConnState st, CompletableFuture<Result> fut, long received,
+                           int id, String name, Result res, Throwable err) {
+        if (fut instanceof Generation) st.waiting.remove(fut);
+        if (err == null) responseNanos.recordSince(received);
+        respond(key, st, id, name, res, err);
+    }
+
+    /** Ставит ответ в очередь на отправку. Выполняется в IO-нити соединения. */
+    private void respond(SelectionKey key, ConnState st, int id, String name, Result res, Throwable err) {
+        if (!key.isValid()) return;
+        st.pending--;
+        if (st.mode == MODE_SINGLE && err != null) { closeKey(key); return; }
+        if (st.mode == MODE_PIPELINED) {
+            ByteBuffer header = ByteBuffer.allocate(Protocol.FRAME_HEADER_LEN)
+                    .putInt(id)
+                    .put(status(err))
+                    .putInt(err == null ? res.keyLength() : 0)
+                    .putInt(err == null ? res.certLength() : 0)
+                    .flip();
+            st.out.add(header);
+        }
+        if (err == null) {
+            // Сегменты общего закодированного ответа, без копирования
+            if (res.inMemory()) {
+                st.out.add(res.keyPem());
+                st.out.add(res.certPem());
+            } else {
+                st.out.add(new FileRegion(res.file(), res.filePosition(), res.size()));
+            }
+        }
+        LOG.fine(() -> "Prepared response for name='" + name + "'" + (err == null ? " (" + res.size() + " bytes)" : " (error)"));
+        try {
+            // Если чтение стояло из-за лимита незавершённых запросов — разберём накопленное
+            if (st.parsing) return; // processInput сам обновит интерес
+            if (st.mode == MODE_PIPELINED && st.pending == MAX_PIPELINED - 1 && st.readBuf != null) {
+                processInput(key, st, st.readBuf);
+            } else {
+                updateInterest(key, st);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Protocol error", e);
             closeKey(key);
         }
     }
 
-    private void handleWrite(SelectionKey key) {
+    static byte status(Throwable err) {
+        if (err == null) return Protocol.STATUS_OK;
+        if (err instanceof CompletionException && err.getCause() != null) err = err.getCause();
+        return err instanceof RejectedExecutionException ? Protocol.STATUS_BUSY : Protocol.STATUS_ERROR;
+    }
+
+    private String clientKey(ConnState st, IssueRequest req) {
+        // Пересланный запрос несёт ключ исходного клиента, посчитанный узлом, к которому тот пришёл
+        if (st.forwarded && req.client() != null) return req.client();
+        if (!fairByPrefix) return st.client;
+        // Без префикса имя не называет арендатора: иначе каждое такое имя стало бы отдельным
+        // клиентом очереди и поток уникальных имён без точки обгонял бы настоящих клиентов
+        int dot = req.name().indexOf('.');
+        return dot <= 0 ? st.client : req.name().substring(0, dot);
+    }
+
+    private void updateInterest(SelectionKey key, ConnState st) {
+        if (!key.isValid()) return;
+        int ops = 0;
+        if (!st.inputClosed && !(st.mode == MODE_PIPELINED && st.pending >= MAX_PIPELINED)) ops |= SelectionKey.OP_READ;
+        if (!st.out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+        armDeadline(st, false);
+    }
+
+    /**
+     * Взводит дедлайн по состоянию соединения: есть неотправленный ответ — на запись, ждём
+     * генерацию — никакого, иначе — на чтение. Соединение от узла кластера подчиняется тем же
+     * правилам: простаивающее закрывается, узел откроет новое при следующей пересылке. Уже взведённый дедлайн того же вида не
+     * продлевается (клиент, присылающий имя по байту, не отодвигает его), кроме restart —
+     * запись продвинулась.
+     */
+    private void armDeadline(ConnState st, boolean restart) {
+        byte kind;
+        if (!st.out.isEmpty()) kind = DEADLINE_WRITE;
+        else if (st.pending > 0 || st.inputClosed) kind = DEADLINE_NONE;
+        else kind = DEADLINE_READ;
+        long delay = kind == DEADLINE_READ ? readTimeoutNanos : kind == DEADLINE_WRITE ? writeTimeoutNanos : 0;
+        if (delay == 0) {
+            st.loop.wheel().cancel(st.timeout);
+        } else if (kind != st.deadline || restart) {
+            st.loop.wheel().schedule(st.timeout, delay, System.nanoTime());
+        }
+        st.deadline = kind;
+    }
+
+    private void timedOut(SelectionKey key, ConnState st) {
+        if (!key.isValid()) return;
+        if (st.deadline == DEADLINE_WRITE) writeTimeouts.increment();
+        else readTimeouts.increment();
+        LOG.fine(() -> (st.deadline == DEADLINE_WRITE ? "Write" : "Read") + " timeout, closing " + safeRemote(st.channel));
+        closeKey(key);
+    }
+
+    void handleWrite(SelectionKey key) {
         ConnState st = (ConnState) key.attachment();
         try {
-            if (st.writeBuf == null) { key.interestOps(SelectionKey.OP_READ); return; }
-            st.channel.write(st.writeBuf);
-            if (!st.writeBuf.hasRemaining()) {
+            if (!flush(st)) {
+                armDeadline(st, true); // клиент читает — отсчитываем заново
+                return; // сокет заполнен, продолжим по OP_WRITE
+            }
+            if (st.mode == MODE_SINGLE || (st.inputClosed && st.pending == 0)) {
                 // Ответ отправлен — закрываем соединение
                 LOG.fine(() -> "Response sent, closing " + safeRemote(st.channel));
                 closeKey(key);
+            } else {
+                updateInterest(key, st);
             }
         } catch (IOException e) {
             LOG.log(Level.FINE, "IO error on write", e);
@@ -162,39 +722,202 @@ public final class KeyServer {
         }
     }
 
-    private void submitGeneration(String name, CompletableFuture<Result> target) {
-        generatorPool.submit(() -> {
+    /**
+     * Пишет очередь ответов: подряд идущие буферы (заголовки кадров, PEM из памяти) —
+     * одним gathering write, участки файла хранилища — через transferTo.
+     * Возвращает true, если очередь опустела.
+     */
+    private boolean flush(ConnState st) throws IOException {
+        ByteBuffer[] batch = st.loop.gatherArray();
+        while (!st.out.isEmpty()) {
+            if (st.out.peek() instanceof FileRegion region) {
+                long before = region.remaining;
+                boolean done = region.transferTo(st.channel);
+                bytesWritten.add(before - region.remaining);
+                if (!done) return false;
+                st.out.poll();
+                continue;
+            }
+            int n = 0;
+            for (Object o : st.out) {
+                if (!(o instanceof ByteBuffer b) || n == batch.length) break;
+                batch[n++] = b;
+            }
+            try {
+                bytesWritten.add(st.channel.write(batch, 0, n));
+            } finally {
+                Arrays.fill(batch, 0, n, null);
+            }
+            while (st.out.peek() instanceof ByteBuffer b && !b.hasRemaining()) st.out.poll();
+            if (st.out.peek() instanceof ByteBuffer) return false;
+        }
+        return true;
+    }
+
+    /** Участок файла, отправляемый в сокет без копирования в память процесса. */
+    private static final class FileRegion {
+        final FileChannel file;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        boolean transferTo(SocketChannel ch) throws IOException {
+            while (remaining > 0) {
+                long n = file.transferTo(position, remaining, ch);
+                if (n <= 0) return false;
+                position += n;
+                remaining -= n;
+            }
+            return true;
+        }
+    }
+
+    /** Ставит в очередь генерации, запрошенные до прошлой остановки и не завершившиеся. */
+    private void recover() {
+        if (journal == null || journal.recovered().isEmpty()) return;
+        int requeued = 0;
+        for (String key : journal.recovered()) {
+            if (store.contains(key)) { // пара успела сохраниться, а отметка о завершении — нет
+                journal.done(key);
+                continue;
+            }
+            IssueRequest req;
             try {
-                KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-                kpg.initialize(8192, new SecureRandom());
-                KeyPair kp = kpg.generateKeyPair();
-                X509Certificate cert = CertUtils.issueCertificate(
-                        keyStoreService.getIssuerDn(),
-                        "CN=" + name,
-                        kp,
-                        keyStoreService.getCaPrivateKey()
-                );
-                target.complete(new Result(kp, cert));
-                LOG.info(() -> "Generated RSA8192 and certificate for '" + name + "'");
-            } catch (Exception e) {
-                target.completeExceptionally(e);
-                LOG.log(Level.WARNING, "Generation failed for '" + name + "'", e);
+                // В ключе журнала профиль и CA уже записаны явно, умолчания нового запуска не подставляются
+                req = IssueRequest.parse(key, defaultProfile, keyStoreService.defaultIssuerId());
+                if (!keyStoreService.hasIssuer(req.issuer())) throw new IllegalArgumentException("Unknown issuer '" + req.issuer() + "'");
+            } catch (IllegalArgumentException e) {
+                LOG.warning(() -> "Dropping journaled generation '" + key + "': " + e.getMessage());
+                journal.done(key);
+                continue;
             }
-        });
+            nameToFuture.get(key, n -> {
+                Generation g = new Generation(req, scheduler);
+                submitGeneration(req, "journal", g);
+                return g;
+            });
+            requeued++;
+        }
+        int total = requeued;
+        LOG.info(() -> "Re-queued " + total + " unfinished generations from the journal");
+    }
+
+    private void submitGeneration(IssueRequest req, String client, Generation target) {
+        if (journal != null) {
+            journal.requested(req.cacheKey());
+            target.whenComplete((res, err) -> journal.done(req.cacheKey()));
+        }
+        activeGenerations.incrementAndGet();
+        try {
+            target.setJob(scheduler.submit(req.priority(), client, () -> generate(req, target)));
+        } catch (RejectedExecutionException e) {
+            activeGenerations.decrementAndGet();
+            LOG.warning(() -> "Rejected generation for '" + req.name() + "' from " + client + ": " + e.getMessage());
+            target.completeExceptionally(e);
+        }
+    }
+
+    private void generate(IssueRequest req, Generation target) {
+        try {
+            // Запас готовых пар есть только для профиля сервера по умолчанию;
+            // если он пуст или профиль другой — генерируем прямо здесь
+            KeyPair kp = req.profile() == defaultProfile ? keyPairPool.poll() : null;
+            // Простаивающие нити генерации помогают искать простые для этого запроса
+            if (kp == null) kp = generateKeyPair(req.profile(), Math.max(0, generatorThreads - activeGenerations.get()));
+            long t0 = System.nanoTime();
+            X509Certificate cert = keyStoreService.getIssuer(req.issuer()).issue(req.name(), kp.getPublic());
+            long t1 = System.nanoTime();
+            signNanos.record(t1 - t0);
+            Result result = Result.of(
+                    PemUtils.toPem(kp.getPrivate()).getBytes(StandardCharsets.US_ASCII),
+                    PemUtils.toPem(cert).getBytes(StandardCharsets.US_ASCII)
+            );
+            pemNanos.recordSince(t1);
+            persist(req.cacheKey(), result);
+            // Все ждавшие ушли, пока задача работала: результат останется только в кэше
+            if (target.waiters() == 0) wastedGenerations.increment();
+            target.complete(result);
+            LOG.info(() -> "Generated " + req.profile().id() + " key and certificate for '" + req.name() + "'");
+        } catch (Exception e) {
+            target.completeExceptionally(e);
+            LOG.log(Level.WARNING, "Generation failed for '" + req.name() + "'", e);
+        } finally {
+            activeGenerations.decrementAndGet();
+            keyPairPool.maybeRefill();
+        }
+    }
+
+    /** helpers — сколько нитей может помочь параллельному генератору RSA. */
+    private KeyPair generateKeyPair(KeyProfile profile, int helpers) throws GeneralSecurityException {
+        long t0 = System.nanoTime();
+        KeyPair kp = parallelRsa != null && profile.rsaBits() > 0
+                ? parallelRsa.generate(profile.rsaBits(), RANDOM, helpers)
+                : profile.generate(RANDOM);
+        keygenNanos.recordSince(t0);
+        return kp;
+    }
+
+    /**
+     * Соединение закрылось: оно больше не ждёт своих генераций. Задачи, которые теперь никто
+     * не ждёт и которые ещё не начались, снимаются с очереди или уходят в фоновый класс.
+     */
+    private void releaseWaiters(ConnState st) {
+        if (st.waiting.isEmpty()) return;
+        // Снятая задача завершается прямо здесь, и её обработчик тоже правит st.waiting
+        Generation[] waiting = st.waiting.toArray(new Generation[0]);
+        st.waiting.clear();
+        for (Generation g : waiting) {
+            if (!g.release()) continue;
+            orphaned.increment();
+            if (demoteOrphans) {
+                if (g.demote()) demotedGenerations.increment();
+            } else if (g.drop()) {
+                activeGenerations.decrementAndGet();
+                savedGenerations.increment();
+                g.completeExceptionally(new CancellationException("All waiting clients disconnected"));
+            }
+        }
+    }
+
+    private void persist(String name, Result result) {
+        if (store == null) return;
+        try {
+            store.append(name, result);
+        } catch (IOException e) {
+            // Не страшно: пара всё равно отдаётся клиенту, просто не переживёт перезапуск
+            LOG.log(Level.WARNING, "Failed to persist result for '" + name + "'", e);
+        }
     }
 
-    private void schedule(Selector selector, Runnable r) {
-        ioTasks.add(r);
-        selector.wakeup();
+    private void releaseReadBuf(ConnState st) {
+        if (st.readBuf == null) return;
+        readPool.release(st.readBuf);
+        st.readBuf = null;
     }
 
     private void closeKey(SelectionKey key) {
+        boolean wasOpen = key.channel().isOpen();
         try { key.channel().close(); } catch (IOException ignored) {}
         key.cancel();
+        if (key.attachment() instanceof ConnState st) {
+            if (wasOpen) openConnections.decrementAndGet();
+            if (st.timeout != null) st.loop.wheel().cancel(st.timeout);
+            releaseReadBuf(st);
+            releaseWaiters(st);
+        }
     }
 
-    private void safeClose(Channel ch) {
-        try { ch.close(); } catch (IOException ignored) {}
+    private static String remoteHost(SocketChannel ch) {
+        try {
+            return ch.getRemoteAddress() instanceof InetSocketAddress a ? a.getHostString() : "?";
+        } catch (IOException e) {
+            return "?";
+        }
     }
 
     private static String safeRemote(SocketChannel ch) {
@@ -0,0 +1,172 @@
+package nsu.kochanov.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Соединение с узлом-владельцем для пересылки запросов в кластере. Одно постоянное соединение
+ * в режиме {@link Protocol#FORWARDED}: запросы идут подряд, ответы приходят кадрами с номером
+ * запроса в этом соединении.
+ * <p>
+ * IO-нити сервера только кладут запрос в очередь ({@link #forward}); писать в сокет будет
+ * отдельная нить узла, читать кадры — нить текущего соединения. Если соединение рвётся,
+ * следующий запрос откроет новое. Владелец закрывает простаивающее соединение по дедлайну
+ * чтения, и запрос мог уйти в уже закрываемое: незавершённые запросы оборванного соединения
+ * один раз отправляются заново по новому (выпуск по ключу идемпотентен), при повторном
+ * обрыве завершаются ошибкой.
+ */
+final class PeerClient {
+    private static final Logger LOG = Logger.getLogger(PeerClient.class.getName());
+
+    private record Forward(String token, CompletableFuture<Result> target, boolean retried) {}
+
+    /** Одно соединение с узлом и запросы, отправленные по нему и ещё не получившие ответа. */
+    private static final class Connection {
+        final SocketChannel channel;
+        final Map<Integer, Forward> sent = new HashMap<>(); // под this
+        int nextId; // владелец нумерует запросы соединения по порядку с нуля, и мы тоже
+        boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized boolean register(Forward f) {
+            if (closed) return false;
+            sent.put(nextId++, f);
+            return true;
+        }
+
+        synchronized Forward take(int id) {
+            return sent.remove(id);
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /** Закрывает соединение и возвращает запросы, оставшиеся без ответа. */
+        synchronized List<Forward> fail() {
+            if (closed) return List.of();
+            closed = true;
+            List<Forward> unanswered = new ArrayList<>(sent.values());
+            sent.clear();
+            try { channel.close(); } catch (IOException ignored) {}
+            return unanswered;
+        }
+    }
+
+    private final ClusterConfig.Node node;
+    private final BlockingQueue<Forward> outbox = new LinkedBlockingQueue<>();
+    private Connection connection; // только в нити отправки
+
+    PeerClient(ClusterConfig.Node node) {
+        this.node = node;
+        Thread sender = new Thread(this::sendLoop, "peer-" + node.id());
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    CompletableFuture<Result> forward(String token) {
+        CompletableFuture<Result> f = new CompletableFuture<>();
+        outbox.add(new Forward(token, f, false));
+        return f;
+    }
+
+    private void retryOrFail(Forward f, IOException cause) {
+        if (f.retried()) f.target().completeExceptionally(cause);
+        else outbox.add(new Forward(f.token(), f.target(), true));
+    }
+
+    private void failed(Connection c, IOException cause) {
+        for (Forward f : c.fail()) retryOrFail(f, cause);
+    }
+
+    private void sendLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(KeyServer.READ_BUFFER_SIZE);
+        while (true) {
+            Forward fwd;
+            try {
+                fwd = outbox.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Connection c;
+            try {
+                c = connection();
+            } catch (IOException e) {
+                connection = null;
+                fwd.target().completeExceptionally(e);
+                LOG.log(Level.FINE, "Forwarding to node '" + node.id() + "' failed", e);
+                continue;
+            }
+            if (!c.register(fwd)) {
+                connection = null;
+                retryOrFail(fwd, new IOException("Connection to node '" + node.id() + "' is closed"));
+                continue;
+            }
+            try {
+                byte[] bytes = fwd.token().getBytes(StandardCharsets.US_ASCII);
+                buf.clear();
+                if (bytes.length + 1 > buf.capacity()) buf = ByteBuffer.allocate(bytes.length + 1);
+                buf.put(bytes).put((byte) 0).flip();
+                while (buf.hasRemaining()) c.channel.write(buf);
+            } catch (IOException e) {
+                connection = null;
+                failed(c, e); // в том числе fwd: он уже зарегистрирован в соединении
+                LOG.log(Level.FINE, "Forwarding to node '" + node.id() + "' failed", e);
+            }
+        }
+    }
+
+    private Connection connection() throws IOException {
+        if (connection != null && !connection.isClosed()) return connection;
+        SocketChannel ch = SocketChannel.open(node.address());
+        ch.write(ByteBuffer.wrap(new byte[]{Protocol.FORWARDED}));
+        Connection c = new Connection(ch);
+        Thread reader = new Thread(() -> readLoop(c), "peer-" + node.id() + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+        LOG.info(() -> "Connected to cluster node '" + node.id() + "' at " + node.address());
+        connection = c;
+        return c;
+    }
+
+    private void readLoop(Connection c) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c.channel), 64 * 1024));
+            while (true) {
+                int id = in.readInt();
+                byte status = in.readByte();
+                byte[] key = new byte[in.readInt()];
+                byte[] cert = new byte[in.readInt()];
+                in.readFully(key);
+                in.readFully(cert);
+                Forward fwd = c.take(id);
+                if (fwd == null) throw new IOException("Unexpected request id " + id + " from node '" + node.id() + "'");
+                CompletableFuture<Result> f = fwd.target();
+                if (status == Protocol.STATUS_OK) f.complete(Result.of(key, cert));
+                else if (status == Protocol.STATUS_BUSY) f.completeExceptionally(new RejectedExecutionException("Node '" + node.id() + "' is busy"));
+                else f.completeExceptionally(new IOException("Node '" + node.id() + "' failed to issue"));
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Connection to node '" + node.id() + "' closed", e);
+            failed(c, e);
+        }
+    }
+}
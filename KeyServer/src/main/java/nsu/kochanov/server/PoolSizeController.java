@@ -0,0 +1,109 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.Metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Подбирает число нитей генерации по тому, что видно снаружи пула: среднему ожиданию задач
+ * в очереди за последний интервал и загрузке CPU машины.
+ * <p>
+ * Задачи ждут дольше цели, а CPU не загружен — нитей не хватает: пул растёт на четверть
+ * (минимум на одну нить). CPU загружен, а нитей больше, чем ядер, — генерация вытесняет
+ * подпись и IO-нити: пул уменьшается на одну нить, очередь при этом ждёт так же, ведь ядер
+ * больше не стало. Очередь пуста и половина нитей простаивает — пул тоже уменьшается на одну.
+ * После изменения один интервал пропускается, чтобы окно ожидания отразило новый размер.
+ * Размер всегда в пределах [min, max]. Вызывается из принимающей нити раз в {@link #INTERVAL_MS}.
+ */
+final class PoolSizeController {
+    private static final Logger LOG = Logger.getLogger(PoolSizeController.class.getName());
+    static final long INTERVAL_MS = 2_000;
+    private static final long TARGET_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final double CPU_HIGH = 0.90;
+
+    private final int min;
+    private final int max;
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final GenerationScheduler scheduler;
+    private final IntSupplier threads; // текущий размер пула
+    private final IntSupplier busy;    // нити, выполняющие задачу прямо сейчас
+    private final IntConsumer resize;
+    // null, если JVM не даёт загрузку CPU: тогда решаем только по очереди
+    private final com.sun.management.OperatingSystemMXBean os;
+
+    private long lastWaitNanos;
+    private long lastStarted;
+    private boolean cooldown;
+    private volatile long windowWaitNanos; // среднее ожидание в последнем окне
+    private volatile int cpuPercent = -1;
+
+    private final LongAdder grows;
+    private final LongAdder shrinks;
+
+    PoolSizeController(int min, int max, GenerationScheduler scheduler, IntSupplier threads, IntSupplier busy,
+                       IntConsumer resize, Metrics metrics) {
+        if (min < 1 || max < min) throw new IllegalArgumentException("Thread bounds must satisfy 1 <= min <= max");
+        this.min = min;
+        this.max = max;
+        this.scheduler = scheduler;
+        this.threads = threads;
+        this.busy = busy;
+        this.resize = resize;
+        this.os = ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean b ? b : null;
+        this.lastWaitNanos = scheduler.totalWaitNanos();
+        this.lastStarted = scheduler.started();
+        this.grows = metrics.counter("adaptive.grow");
+        this.shrinks = metrics.counter("adaptive.shrink");
+        metrics.gauge("adaptive.wait.nanos", () -> windowWaitNanos);
+        metrics.gauge("adaptive.cpu.percent", () -> cpuPercent);
+    }
+
+    /** Один шаг регулятора: снимает окно и, если нужно, меняет размер пула на одну ступень. */
+    void tick() {
+        long waitTotal = scheduler.totalWaitNanos();
+        long started = scheduler.started();
+        long n = started - lastStarted;
+        long meanWait = n == 0 ? 0 : (waitTotal - lastWaitNanos) / n;
+        lastWaitNanos = waitTotal;
+        lastStarted = started;
+        windowWaitNanos = meanWait;
+        double cpu = os == null ? -1 : os.getCpuLoad();
+        cpuPercent = cpu < 0 ? -1 : (int) Math.round(cpu * 100);
+        if (cooldown) {
+            cooldown = false;
+            return;
+        }
+
+        int current = threads.getAsInt();
+        int queued = scheduler.queued();
+        boolean cpuSaturated = cpu >= CPU_HIGH;
+        int target = current;
+        String reason = null;
+        if (cpuSaturated && current > cores && current > min) {
+            target = current - 1;
+            reason = "CPU saturated";
+        } else if ((meanWait > TARGET_WAIT_NANOS || queued > current) && !cpuSaturated && current < max) {
+            target = Math.min(max, current + Math.max(1, current / 4));
+            reason = "queue wait";
+        } else if (queued == 0 && meanWait < TARGET_WAIT_NANOS / 4 && busy.getAsInt() < current / 2 && current > min) {
+            target = current - 1;
+            reason = "idle";
+        }
+        if (target == current) return;
+
+        resize.accept(target);
+        (target > current ? grows : shrinks).increment();
+        cooldown = true;
+        int from = current;
+        int to = target;
+        String why = reason;
+        LOG.info(() -> "Generator threads " + from + " -> " + to + " (" + why + "): mean queue wait "
+                + TimeUnit.NANOSECONDS.toMillis(meanWait) + " ms over " + n + " tasks, " + queued + " queued, CPU "
+                + (cpuPercent < 0 ? "n/a" : cpuPercent + "%"));
+    }
+}
@@ -0,0 +1,53 @@
+package nsu.kochanov.server;
+
+/**
+ * Константы протокола.
+ * <p>
+ * Обычный режим: клиент шлёт {@code ASCII(имя) 0x00}, сервер отвечает PEM ключа и сертификата
+ * и закрывает соединение.
+ * <p>
+ * Режим нескольких запросов: первый байт соединения — {@link #PIPELINED}, дальше сколько угодно
+ * имён, каждое с завершающим {@code 0x00}. Запросы нумеруются по порядку с нуля. На каждый сервер
+ * отвечает кадром {@code id(4) | status(1) | keyLen(4) | certLen(4) | keyPem | certPem}
+ * (числа big-endian); кадры приходят по мере готовности, не обязательно по порядку. Соединение
+ * закрывается после того, как клиент закрыл свою сторону на запись и получил все ответы.
+ * <p>
+ * Пакетный режим: первый байт — {@link #BATCH}, за ним число имён N (u32 big-endian, от 1 до
+ * {@link #MAX_BATCH}) и N имён с завершающими {@code 0x00}. Ответы — те же кадры, что в режиме
+ * нескольких запросов, по мере готовности; после N-го кадра сервер закрывает соединение,
+ * закрывать свою сторону на запись клиенту не нужно. Байты после N-го имени игнорируются.
+ * <p>
+ * Во всех режимах за именем могут идти параметры выпуска, каждый после {@link #OPTION_SEPARATOR}:
+ * {@code profile=<id>} — профиль ключа (см. {@link nsu.kochanov.crypto.KeyProfile}),
+ * {@code issuer=<id>} — CA из хранилища сервера (см. {@link nsu.kochanov.crypto.IssuerStore}),
+ * {@code priority=high|normal|low} — класс приоритета генерации. {@code high} обслуживается строго
+ * раньше остальных и принимается только с адресов из {@code --high-priority-from}, с других
+ * запрос получает ошибку.
+ * <p>
+ * Если очередь генерации переполнена, в обычном режиме соединение закрывается без ответа,
+ * в режиме нескольких запросов приходит кадр со статусом {@link #STATUS_BUSY}.
+ * <p>
+ * Соединение между узлами кластера начинается с {@link #FORWARDED}: дальше всё как в режиме
+ * нескольких запросов, но узел обслуживает такие запросы сам и никуда их не пересылает
+ * (так пересылка не зацикливается, даже если узлы временно расходятся в составе кластера).
+ * Пересылающий узел добавляет к запросу параметр {@code client=<ключ>} — ключ справедливой
+ * очереди исходного клиента, чтобы владелец делил очередь по настоящим клиентам, а не считал
+ * весь поток от узла одним клиентом. От обычных клиентов этот параметр не принимается.
+ * Режим FORWARDED принимается только с адресов узлов из файла состава кластера; с других
+ * адресов (и вне кластера) соединение закрывается сразу.
+ */
+public final class Protocol {
+    public static final byte PIPELINED = 0x01;
+    public static final byte FORWARDED = 0x02;
+    public static final byte BATCH = 0x03;
+    public static final int BATCH_HEADER_LEN = 5;
+    public static final int MAX_BATCH = 1_000_000;
+    public static final char OPTION_SEPARATOR = 0x1F; // ASCII Unit Separator
+
+    public static final int FRAME_HEADER_LEN = 13;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_BUSY = 2;
+
+    private Protocol() {}
+}
@@ -0,0 +1,83 @@
+package nsu.kochanov.server;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Выпущенная для имени пара: приватный ключ и сертификат в PEM (ASCII).
+ * <p>
+ * Свежий результат лежит в памяти: оба PEM в одном direct-буфере, доступны как два отдельных
+ * сегмента только для чтения. Каждое соединение пишет из своих {@code duplicate()}, позиция общих
+ * буферов не меняется. Результат, поднятый из {@link ResultStore}, в память не читается: он
+ * ссылается на участок сегмент-файла (ключ и сертификат там идут подряд) и отправляется
+ * через {@link FileChannel#transferTo}.
+ */
+final class Result {
+    private final ByteBuffer keyPem;  // null для результата из хранилища
+    private final ByteBuffer certPem;
+    private final FileChannel file;   // null для результата в памяти
+    private final long filePosition;
+    private final int keyLength;
+    private final int certLength;
+
+    private Result(ByteBuffer keyPem, ByteBuffer certPem, FileChannel file, long filePosition, int keyLength, int certLength) {
+        this.keyPem = keyPem;
+        this.certPem = certPem;
+        this.file = file;
+        this.filePosition = filePosition;
+        this.keyLength = keyLength;
+        this.certLength = certLength;
+    }
+
+    static Result of(byte[] keyPem, byte[] certPem) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(keyPem.length + certPem.length);
+        buf.put(keyPem).put(certPem).flip();
+        ByteBuffer ro = buf.asReadOnlyBuffer();
+        ByteBuffer key = ro.duplicate().limit(keyPem.length).slice();
+        ByteBuffer cert = ro.duplicate().position(keyPem.length).slice();
+        return new Result(key, cert, null, 0, keyPem.length, certPem.length);
+    }
+
+    static Result stored(FileChannel file, long position, int keyLength, int certLength) {
+        return new Result(null, null, file, position, keyLength, certLength);
+    }
+
+    boolean inMemory() {
+        return file == null;
+    }
+
+    int keyLength() {
+        return keyLength;
+    }
+
+    int certLength() {
+        return certLength;
+    }
+
+    int size() {
+        return keyLength + certLength;
+    }
+
+    /** Сколько байт ответа держится в памяти (для веса в кэше). */
+    int residentBytes() {
+        return inMemory() ? size() : 0;
+    }
+
+    /** Независимая позиция/лимит над общими байтами ключа — без копирования. */
+    ByteBuffer keyPem() {
+        return keyPem.duplicate();
+    }
+
+    ByteBuffer certPem() {
+        return certPem.duplicate();
+    }
+
+    FileChannel file() {
+        return file;
+    }
+
+    /** Смещение PEM ключа в файле; сертификат идёт сразу за ним. */
+    long filePosition() {
+        return filePosition;
+    }
+}
@@ -0,0 +1,142 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Кэш выданных пар с ограничением по суммарному размеру PEM в памяти и по времени простоя записи.
+ * Результаты, отдаваемые прямо из файла хранилища, весят только своё имя.
+ * <p>
+ * Незавершённые запросы лежат отдельно в {@code inFlight}: для каждого имени существует не больше
+ * одной future, и все клиенты с этим именем ждут её (дедупликация). После успешного завершения
+ * результат переносится в LRU-часть, где и вытесняется: сначала давно не запрашиваемые записи,
+ * пока вес не уложится в лимит. Записи, которые не запрашивали дольше maxIdle, считаются
+ * устаревшими. Ошибочно завершённые future просто удаляются — имя можно запросить снова.
+ */
+final class ResultCache {
+    private record Entry(Result result, long weight, long lastAccessNanos) {}
+
+    private final long maxWeight;
+    private final long maxIdleNanos; // 0 — без ограничения
+
+    private final Map<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+    // accessOrder = true: в голове — дольше всех не запрашиваемые записи
+    private final LinkedHashMap<String, Entry> completed = new LinkedHashMap<>(256, 0.75f, true);
+    private long weight; // под this
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictedBySize;
+    private final LongAdder evictedByIdle;
+
+    ResultCache(long maxWeight, long maxIdleNanos, Metrics metrics) {
+        this.maxWeight = maxWeight;
+        this.maxIdleNanos = maxIdleNanos;
+        this.hits = metrics.counter("cache.hits");
+        this.misses = metrics.counter("cache.misses");
+        this.evictedBySize = metrics.counter("cache.evictions.size");
+        this.evictedByIdle = metrics.counter("cache.evictions.idle");
+        metrics.gauge("cache.inflight", inFlight::size);
+        metrics.gauge("cache.entries", this::entries);
+        metrics.gauge("cache.bytes", this::weight);
+    }
+
+    /**
+     * Готовый результат, уже идущий запрос или новый запрос, созданный через loader.
+     * loader вызывается не больше одного раза на имя, пока его future не завершится.
+     */
+    CompletableFuture<Result> get(String name, Function<String, CompletableFuture<Result>> loader) {
+        while (true) {
+            Result cached = lookup(name);
+            if (cached != null) {
+                hits.increment();
+                return CompletableFuture.completedFuture(cached);
+            }
+            boolean[] created = new boolean[1];
+            CompletableFuture<Result> fut = inFlight.computeIfAbsent(name, n -> {
+                // Результат мог переехать в LRU между lookup и computeIfAbsent
+                if (contains(n)) return null;
+                created[0] = true;
+                return loader.apply(n);
+            });
+            if (fut == null) continue;
+            if (created[0]) {
+                misses.increment();
+                fut.whenComplete((res, err) -> {
+                    if (err == null) put(name, res);
+                    inFlight.remove(name, fut);
+                });
+            }
+            return fut;
+        }
+    }
+
+    private synchronized Result lookup(String name) {
+        Entry e = completed.get(name);
+        if (e == null) return null;
+        long now = System.nanoTime();
+        if (maxIdleNanos > 0 && now - e.lastAccessNanos > maxIdleNanos) {
+            remove(name, e);
+            evictedByIdle.increment();
+            return null;
+        }
+        completed.put(name, new Entry(e.result, e.weight, now));
+        return e.result;
+    }
+
+    private synchronized boolean contains(String name) {
+        return completed.containsKey(name);
+    }
+
+    private synchronized void put(String name, Result result) {
+        long w = result.residentBytes() + name.length();
+        Entry prev = completed.put(name, new Entry(result, w, System.nanoTime()));
+        if (prev != null) weight -= prev.weight;
+        weight += w;
+        evict();
+    }
+
+    /** Убирает записи, простаивающие дольше maxIdle. Вызывается периодически из цикла сервера. */
+    synchronized void expire() {
+        if (maxIdleNanos <= 0) return;
+        long now = System.nanoTime();
+        Iterator<Entry> it = completed.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (now - e.lastAccessNanos <= maxIdleNanos) break; // дальше только более свежие
+            it.remove();
+            weight -= e.weight;
+            evictedByIdle.increment();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = completed.values().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Entry e = it.next();
+            it.remove();
+            weight -= e.weight;
+            evictedBySize.increment();
+        }
+    }
+
+    private void remove(String name, Entry e) {
+        completed.remove(name);
+        weight -= e.weight;
+    }
+
+    synchronized int entries() {
+        return completed.size();
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+}
@@ -0,0 +1,256 @@
+package nsu.kochanov.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Дисковое хранилище выданных пар: один сегмент-файл, в который записи только дописываются.
+ * Формат записи: magic(4) | crc32(4) | nameLen(4) | keyLen(4) | certLen(4) | name | keyPem | certPem,
+ * crc считается по name + keyPem + certPem.
+ * <p>
+ * При открытии просматриваются только заголовки — так строится индекс имя → смещение.
+ * Заголовки читаются позиционным чтением окнами по {@link #SCAN_WINDOW}, а не отображением
+ * всего файла: сегмент только растёт, и отображение одним буфером упёрлось бы в 2 ГиБ. Сами PEM читаются с диска лениво, при первом запросе имени: тогда же
+ * один раз проверяется контрольная сумма записи, дальше запись отдаётся без обращения к диску.
+ * Недописанный хвост (падение во время записи) отрезается.
+ */
+final class ResultStore implements Closeable {
+    private static final Logger LOG = Logger.getLogger(ResultStore.class.getName());
+    private static final int MAGIC = 0x4B535231; // "KSR1"
+    private static final int HEADER_LEN = 20;
+
+    private static final int VERIFY_CHUNK = 64 * 1024;
+    private static final int SCAN_WINDOW = 1 << 20; // заголовок с именем всегда помещается целиком
+
+    private static final class Entry {
+        final long offset;
+        final int nameLen;
+        final int keyLen;
+        final int certLen;
+        final int crc;
+        volatile boolean verified; // контрольная сумма уже сверена (или запись сделана этим процессом)
+
+        Entry(long offset, int nameLen, int keyLen, int certLen, int crc, boolean verified) {
+            this.offset = offset;
+            this.nameLen = nameLen;
+            this.keyLen = keyLen;
+            this.certLen = certLen;
+            this.crc = crc;
+            this.verified = verified;
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private long end; // позиция следующей записи; меняется под this
+
+    // Групповой fsync: пока одна нить сбрасывает файл на диск, остальные дописывают свои записи
+    // и ждут; следующий сброс покрывает их все разом
+    private final Object syncLock = new Object();
+    private long durable;  // до этой позиции всё на диске, под syncLock
+    private boolean syncing; // под syncLock
+
+    private ResultStore(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    static ResultStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve("results.seg");
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ResultStore store = new ResultStore(file, ch);
+        try {
+            store.scan();
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void scan() throws IOException {
+        long size = channel.size();
+        ByteBuffer window = ByteBuffer.allocate(SCAN_WINDOW).limit(0);
+        long windowStart = 0; // смещение в файле первого байта окна
+        long pos = 0;
+        while (pos + HEADER_LEN <= size) {
+            if (pos + HEADER_LEN > windowStart + window.limit()) {
+                fill(window, pos, size);
+                windowStart = pos;
+            }
+            int p = (int) (pos - windowStart);
+            if (window.getInt(p) != MAGIC) break;
+            int crc = window.getInt(p + 4);
+            int nameLen = window.getInt(p + 8);
+            int keyLen = window.getInt(p + 12);
+            int certLen = window.getInt(p + 16);
+            if (nameLen < 0 || keyLen < 0 || certLen < 0 || nameLen > SCAN_WINDOW - HEADER_LEN) break;
+            long next = pos + HEADER_LEN + nameLen + keyLen + certLen;
+            if (next > size) break;
+            if (p + HEADER_LEN + nameLen > window.limit()) { // имя на границе окна
+                fill(window, pos, size);
+                windowStart = pos;
+                p = 0;
+            }
+            byte[] name = new byte[nameLen];
+            window.get(p + HEADER_LEN, name);
+            index.put(new String(name, StandardCharsets.US_ASCII), new Entry(pos, nameLen, keyLen, certLen, crc, false));
+            pos = next;
+        }
+        if (pos < size) {
+            LOG.warning("Truncating damaged tail of " + file + " at offset " + pos);
+            channel.truncate(pos);
+        }
+        end = pos;
+        LOG.info("Result store " + file + ": " + index.size() + " entries, " + end + " bytes");
+    }
+
+    /** Читает в window файл с позиции pos (сколько влезет или до конца файла); окно — с нуля. */
+    private void fill(ByteBuffer window, long pos, long size) throws IOException {
+        window.clear().limit((int) Math.min(window.capacity(), size - pos));
+        while (window.hasRemaining()) {
+            if (channel.read(window, pos + window.position()) < 0) break;
+        }
+        window.flip();
+    }
+
+    boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * Сохранённая пара или null, если имени нет либо запись повреждена. При первом обращении
+     * к записи её контрольная сумма сверяется чтением с диска (блокирующе), дальше — нет.
+     * Сам PEM в память не копируется: результат ссылается на файл и отправляется клиентам
+     * через transferTo.
+     */
+    Result load(String name) {
+        Entry e = index.get(name);
+        if (e == null) return null;
+        if (!e.verified) {
+            try {
+                if (!checksumMatches(e)) {
+                    LOG.warning(() -> "Checksum mismatch for '" + name + "' in " + file);
+                    index.remove(name, e);
+                    return null;
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed to read '" + name + "' from " + file, ex);
+                return null;
+            }
+            e.verified = true;
+        }
+        return stored(e);
+    }
+
+    /** Пара без обращения к диску: null, если имени нет или запись ещё не проверена ({@link #load}). */
+    Result peek(String name) {
+        Entry e = index.get(name);
+        return e != null && e.verified ? stored(e) : null;
+    }
+
+    private Result stored(Entry e) {
+        return Result.stored(channel, e.offset + HEADER_LEN + e.nameLen, e.keyLen, e.certLen);
+    }
+
+    private boolean checksumMatches(Entry e) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(VERIFY_CHUNK);
+        long pos = e.offset + HEADER_LEN;
+        long remaining = (long) e.nameLen + e.keyLen + e.certLen;
+        while (remaining > 0) {
+            buf.clear().limit((int) Math.min(buf.capacity(), remaining));
+            int n = channel.read(buf, pos);
+            if (n < 0) return false;
+            crc.update(buf.flip());
+            pos += n;
+            remaining -= n;
+        }
+        return (int) crc.getValue() == e.crc;
+    }
+
+    /**
+     * Дописывает пару (из памяти) в конец сегмента и возвращается, когда она на диске.
+     * Одновременные добавления делят один fsync.
+     */
+    void append(String name, Result result) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(nameBytes);
+        crc.update(result.keyPem());
+        crc.update(result.certPem());
+        int keyLen = result.keyLength();
+        int certLen = result.certLength();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LEN)
+                .putInt(MAGIC)
+                .putInt((int) crc.getValue())
+                .putInt(nameBytes.length)
+                .putInt(keyLen)
+                .putInt(certLen)
+                .flip();
+        ByteBuffer[] record = {header, ByteBuffer.wrap(nameBytes), result.keyPem(), result.certPem()};
+        long recordEnd;
+        synchronized (this) {
+            long start = end;
+            channel.position(start);
+            long total = HEADER_LEN + (long) nameBytes.length + result.size();
+            long written = 0;
+            while (written < total) written += channel.write(record);
+            end = recordEnd = start + total;
+            index.put(name, new Entry(start, nameBytes.length, keyLen, certLen, (int) crc.getValue(), true));
+        }
+        awaitDurable(recordEnd);
+    }
+
+    private void awaitDurable(long position) throws IOException {
+        synchronized (syncLock) {
+            while (durable < position && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for fsync", e);
+                }
+            }
+            if (durable >= position) return;
+            syncing = true; // сбрасываем сами — за себя и за всех, кто успел дописать
+        }
+        long target;
+        synchronized (this) {
+            target = end;
+        }
+        boolean ok = false;
+        try {
+            channel.force(false);
+            ok = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (ok) durable = Math.max(durable, target);
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
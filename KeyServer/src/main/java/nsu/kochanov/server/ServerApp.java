@@ -1,41 +1,153 @@
 package nsu.kochanov.server;
 
+import nsu.kochanov.crypto.KeyProfile;
 import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.metrics.Metrics;
+import nsu.kochanov.metrics.MetricsHttpServer;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public final class ServerApp {
     private static final Logger LOG = Logger.getLogger(ServerApp.class.getName());
     public static void main(String[] args) throws Exception {
-        // Простой парсинг аргументов: --port --threads --issuer --ca-key
-        int port = 9000;
-        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        // Простой парсинг аргументов: --port --threads --io-threads --profile --issuer --ca-key --pool-low --pool-high --store --cache-mb --cache-idle --queue-capacity --fair-by --orphan-policy --read-timeout --write-timeout --metrics-port --admin-port --mode --cluster-config --node-id --rsa-engine --issuer-store --default-issuer --journal --drain-timeout --adaptive-threads --min-threads --max-threads
+        ServerConfig config = new ServerConfig();
         String issuer = "CN=KeyServer CA";
         Path caKey = null;
+        Path issuerStore = null;
+        String defaultIssuer = null;
         for (int i = 0; i < args.length - 1; i++) {
             switch (args[i]) {
-                case "--port" -> port = Integer.parseInt(args[++i]);
-                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--port" -> config.port = Integer.parseInt(args[++i]);
+                case "--threads" -> config.generatorThreads = Integer.parseInt(args[++i]);
+                case "--io-threads" -> config.ioThreads = Integer.parseInt(args[++i]);
+                case "--profile" -> config.defaultProfile = KeyProfile.parse(args[++i]);
                 case "--issuer" -> issuer = args[++i];
                 case "--ca-key" -> caKey = Path.of(args[++i]);
+                case "--issuer-store" -> issuerStore = Path.of(args[++i]);
+                case "--default-issuer" -> defaultIssuer = args[++i];
+                case "--pool-low" -> config.keyPoolLow = Integer.parseInt(args[++i]);
+                case "--pool-high" -> config.keyPoolHigh = Integer.parseInt(args[++i]);
+                case "--store" -> config.storeDir = Path.of(args[++i]);
+                case "--journal" -> config.journal = Boolean.parseBoolean(args[++i]);
+                case "--cache-mb" -> config.cacheMaxBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+                case "--cache-idle" -> config.cacheMaxIdleSeconds = Long.parseLong(args[++i]);
+                case "--queue-capacity" -> config.queueCapacity = Integer.parseInt(args[++i]);
+                case "--fair-by" -> config.fairBy = args[++i];
+                case "--orphan-policy" -> config.orphanPolicy = args[++i];
+                case "--high-priority-from" -> config.highPriorityFrom = List.of(args[++i].split(","));
+                case "--read-timeout" -> config.readTimeoutSeconds = Long.parseLong(args[++i]);
+                case "--write-timeout" -> config.writeTimeoutSeconds = Long.parseLong(args[++i]);
+                case "--metrics-port" -> config.metricsPort = Integer.parseInt(args[++i]);
+                case "--admin-port" -> config.adminPort = Integer.parseInt(args[++i]);
+                case "--mode" -> config.mode = args[++i];
+                case "--cluster-config" -> config.clusterConfig = Path.of(args[++i]);
+                case "--node-id" -> config.nodeId = args[++i];
+                case "--rsa-engine" -> config.rsaEngine = args[++i];
+                case "--drain-timeout" -> config.drainTimeoutSeconds = Long.parseLong(args[++i]);
+                case "--adaptive-threads" -> config.adaptiveThreads = Boolean.parseBoolean(args[++i]);
+                case "--min-threads" -> config.minThreads = Integer.parseInt(args[++i]);
+                case "--max-threads" -> config.maxThreads = Integer.parseInt(args[++i]);
                 default -> {}
             }
         }
-        if (caKey == null) {
-            throw new IllegalArgumentException("--ca-key path is required");
+        if (caKey == null && issuerStore == null) {
+            throw new IllegalArgumentException("--ca-key or --issuer-store path is required");
         }
-        LOG.info("Starting KeyServer on port=" + port + ", threads=" + threads + ", issuer='" + issuer + "'");
-        var ks = KeyStoreService.load(caKey, issuer);
-        var server = new KeyServer(port, threads, ks);
+        if (config.journal) {
+            if (config.storeDir == null) throw new IllegalArgumentException("--journal requires --store");
+            if (!config.mode.equals("nio")) throw new IllegalArgumentException("--journal is supported only in nio mode");
+        }
+        if (config.adaptiveThreads) {
+            if (config.minThreads < 1 || config.maxThreads < config.minThreads) {
+                throw new IllegalArgumentException("--min-threads and --max-threads must satisfy 1 <= min <= max");
+            }
+            if (!config.mode.equals("nio")) throw new IllegalArgumentException("--adaptive-threads is supported only in nio mode");
+        }
+        if (config.adminPort > 0 && !config.mode.equals("nio")) {
+            throw new IllegalArgumentException("--admin-port is supported only in nio mode");
+        }
+        if (config.clusterConfig != null) {
+            if (config.nodeId == null) throw new IllegalArgumentException("--node-id is required with --cluster-config");
+            if (!config.mode.equals("nio")) throw new IllegalArgumentException("--cluster-config is supported only in nio mode");
+        }
+        LOG.info("Starting KeyServer on port=" + config.port + ", mode=" + config.mode + ", threads=" + config.generatorThreads + (config.adaptiveThreads ? " (adaptive " + config.minThreads + ".." + config.maxThreads + ")" : "") + ", io-threads=" + config.ioThreads
+                + ", profile=" + config.defaultProfile.id() + ", rsa-engine=" + config.rsaEngine + ", issuer='" + issuer + "', key pool=" + config.keyPoolLow + ".." + config.keyPoolHigh);
+        long loadStart = System.nanoTime();
+        var ks = KeyStoreService.load(caKey, issuer, issuerStore, defaultIssuer);
+        LOG.info("CA keys loaded in " + (System.nanoTime() - loadStart) / 1000 + " us"
+                + (issuerStore == null ? "" : " (issuer store " + issuerStore + ")"));
+        Path reloadCaKey = caKey;
+        Path reloadStore = issuerStore;
+        String reloadDefault = defaultIssuer;
+        String reloadIssuer = issuer;
         try {
-            server.start();
+            switch (config.mode) {
+                case "nio" -> {
+                    var server = new KeyServer(config, ks);
+                    MetricsHttpServer metrics = startMetrics(config, server.metrics());
+                    MetricsHttpServer admin = null;
+                    try {
+                        if (config.adminPort > 0) {
+                            admin = MetricsHttpServer.startAdmin(config.adminPort);
+                            admin.action("/admin/reload", params -> {
+                                Integer threads = params.containsKey("threads") ? Integer.valueOf(params.get("threads")) : null;
+                                KeyStoreService reloaded = Boolean.parseBoolean(params.get("ca"))
+                                        ? KeyStoreService.load(reloadCaKey, reloadIssuer, reloadStore, reloadDefault)
+                                        : null;
+                                if (threads == null && reloaded == null) {
+                                    throw new IllegalArgumentException("Nothing to reload: pass threads=N and/or ca=true");
+                                }
+                                server.reload(threads, reloaded);
+                                return "reloaded";
+                            });
+                            admin.action("/admin/drain", params -> {
+                                server.shutdown();
+                                return "draining";
+                            });
+                            LOG.info("Admin actions at http://127.0.0.1:" + admin.port()
+                                    + ": POST /admin/reload?threads=N&ca=true, POST /admin/drain");
+                        }
+                        // SIGTERM / Ctrl+C: плавная остановка вместо обрыва очереди
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                            server.shutdown();
+                            try {
+                                server.awaitTermination();
+                            } catch (InterruptedException ignored) {
+                            }
+                        }, "shutdown-drain"));
+                        server.start();
+                    } finally {
+                        if (admin != null) admin.close();
+                        if (metrics != null) metrics.close();
+                    }
+                }
+                case "virtual" -> {
+                    var server = new VirtualThreadServer(config, ks);
+                    MetricsHttpServer metrics = startMetrics(config, server.metrics());
+                    try {
+                        server.start();
+                    } finally {
+                        if (metrics != null) metrics.close();
+                    }
+                }
+                default -> throw new IllegalArgumentException("--mode must be 'nio' or 'virtual'");
+            }
         } catch (Throwable t) {
             LOG.log(Level.SEVERE, "Server stopped with error", t);
             throw t;
         }
     }
-}
-
 
+    /** null, если порт метрик не задан. */
+    private static MetricsHttpServer startMetrics(ServerConfig config, Metrics metrics) throws IOException {
+        if (config.metricsPort <= 0) return null;
+        var endpoint = MetricsHttpServer.start(config.metricsPort, metrics);
+        LOG.info("Metrics available at http://0.0.0.0:" + endpoint.port() + "/metrics");
+        return endpoint;
+    }
+}
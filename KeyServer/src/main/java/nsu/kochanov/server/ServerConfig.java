@@ -0,0 +1,90 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Параметры запуска сервера. Заполняется в {@link ServerApp} из аргументов командной строки.
+ */
+public final class ServerConfig {
+    public int port = 9000;
+    public int generatorThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // Число рабочих IO-нитей (селекторов); accept выполняет отдельная нить.
+    public int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+
+    // Лимит очереди генерации (сверх него запросы отклоняются) и по чему делить клиентов
+    // для справедливой очереди: address — по IP клиента, prefix — по части имени до первой точки.
+    public int queueCapacity = 10_000;
+    public String fairBy = "address";
+
+    // Что делать с задачей, которую перестали ждать все клиенты, пока она стояла в очереди:
+    // drop — снять с очереди, demote — оставить фоновой задачей с низшим приоритетом (прогрев кэша).
+    public String orphanPolicy = "drop";
+
+    // Адреса клиентов, которым разрешён priority=high; с остальных такой запрос отклоняется.
+    // Пусто — класс high доступен только служебным задачам.
+    public List<String> highPriorityFrom = List.of();
+
+    // Сколько секунд соединение может не присылать полное имя и сколько — не забирать ответ
+    // (0 — без ограничения). Пока ответ генерируется, дедлайна нет.
+    public long readTimeoutSeconds = 30;
+    public long writeTimeoutSeconds = 30;
+
+    // Режим исполнения: nio — селекторы и пул генерации (KeyServer),
+    // virtual — виртуальная нить на соединение и запрос (VirtualThreadServer)
+    public String mode = "nio";
+
+    // Кластер: файл состава (одинаковый на всех узлах) и id этого узла в нём; null — одиночный сервер.
+    // Порт узла берётся из файла, --port игнорируется.
+    public Path clusterConfig = null;
+    public String nodeId = null;
+
+    // Порт HTTP-эндпоинта метрик (GET /metrics); 0 — не открывать
+    public int metricsPort = 0;
+
+    // Порт служебных действий (POST /admin/...), слушает только loopback; 0 — не открывать
+    public int adminPort = 0;
+
+    // Генерация RSA: jdk — KeyPairGenerator в нити генерации; parallel — поиск простых
+    // на ForkJoinPool с помощью простаивающих ядер (ParallelRsaKeyGenerator)
+    public String rsaEngine = "jdk";
+
+    // Профиль ключа для запросов без параметра profile (и для запаса готовых пар).
+    public KeyProfile defaultProfile = KeyProfile.RSA_8192;
+
+    // Запас готовых ключевых пар: пополняется, когда размер опускается до low, и до high.
+    // high = 0 отключает запас; -1 — выбрать от числа нитей генерации.
+    public int keyPoolLow = -1;
+    public int keyPoolHigh = -1;
+
+    // Кэш выданных пар в памяти: лимит суммарного размера PEM и время простоя записи (0 — без лимита).
+    public long cacheMaxBytes = 64L * 1024 * 1024;
+    public long cacheMaxIdleSeconds = 3600;
+
+    // Каталог дискового хранилища выданных пар; null — хранить только в памяти.
+    public Path storeDir = null;
+
+    // Журнал выпуска в каталоге хранилища: незавершённые генерации переживают падение
+    // и ставятся в очередь заново при запуске (только режим nio).
+    public boolean journal = false;
+
+    // Адаптивный размер пула генерации (только nio): стартует с generatorThreads и подстраивается
+    // по ожиданию в очереди и загрузке CPU в пределах [minThreads, maxThreads].
+    public boolean adaptiveThreads = false;
+    public int minThreads = 1;
+    public int maxThreads = 2 * Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // Сколько секунд плавная остановка ждёт начатые генерации и отправку ответов,
+    // прежде чем оборвать оставшееся.
+    public long drainTimeoutSeconds = 30;
+
+    int effectiveKeyPoolHigh() {
+        return keyPoolHigh >= 0 ? keyPoolHigh : generatorThreads;
+    }
+
+    int effectiveKeyPoolLow() {
+        return keyPoolLow >= 0 ? keyPoolLow : effectiveKeyPoolHigh() / 2;
+    }
+}
@@ -0,0 +1,100 @@
+package nsu.kochanov.server;
+
+import java.util.ArrayList;
+
+/**
+ * Хешированное колесо таймеров одной IO-нити: дедлайны соединений без отдельной нити-таймера
+ * и без кучи. Время делится на тики; таймер висит в ячейке {@code тик дедлайна mod размер}
+ * в двусвязном списке, так что постановка, перенос и отмена — O(1), а продвижение колеса
+ * просматривает только ячейки прошедших тиков. Таймер дальше одного оборота колеса просто
+ * остаётся в своей ячейке до нужного оборота.
+ * <p>
+ * Не потокобезопасно: все вызовы — из нити {@link EventLoop}.
+ */
+final class TimingWheel {
+
+    /** Таймер соединения; один объект переиспользуется на всё время жизни соединения. */
+    static final class Timeout {
+        final Runnable action;
+        long deadlineTick;
+        Timeout prev, next;
+        boolean linked;
+
+        Timeout(Runnable action) {
+            this.action = action;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] buckets; // голова списка ячейки или null
+    private final int mask;
+    private long currentTick; // последний обработанный тик
+    private int size;
+    private final ArrayList<Timeout> fired = new ArrayList<>();
+
+    TimingWheel(long tickNanos, int wheelSize, long nowNanos) {
+        if (Integer.bitCount(wheelSize) != 1) throw new IllegalArgumentException("wheelSize must be a power of two");
+        this.tickNanos = tickNanos;
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.currentTick = nowNanos / tickNanos;
+    }
+
+    /** Ставит (или переносит) таймер на delayNanos от nowNanos; точность — один тик. */
+    void schedule(Timeout t, long delayNanos, long nowNanos) {
+        if (t.linked) unlink(t);
+        // Округляем вверх: таймер не сработает раньше срока
+        long tick = Math.max((nowNanos + delayNanos + tickNanos - 1) / tickNanos, currentTick + 1);
+        t.deadlineTick = tick;
+        int i = (int) (tick & mask);
+        Timeout head = buckets[i];
+        t.prev = null;
+        t.next = head;
+        if (head != null) head.prev = t;
+        buckets[i] = t;
+        t.linked = true;
+        size++;
+    }
+
+    void cancel(Timeout t) {
+        if (t.linked) unlink(t);
+    }
+
+    /** Срабатывают все таймеры с дедлайном не позже nowNanos. */
+    void advance(long nowNanos) {
+        long target = nowNanos / tickNanos;
+        // После долгого простоя не обходим колесо больше одного раза
+        long from = Math.max(currentTick + 1, target - mask);
+        for (long tick = from; tick <= target; tick++) {
+            Timeout t = buckets[(int) (tick & mask)];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.deadlineTick <= target) {
+                    unlink(t);
+                    fired.add(t);
+                }
+                t = next;
+            }
+        }
+        if (target > currentTick) currentTick = target;
+        // Действия запускаем после обхода: закрытие соединения может переставить чужие таймеры
+        for (int i = 0; i < fired.size(); i++) {
+            Timeout t = fired.get(i);
+            if (!t.linked) t.action.run(); // иначе его уже перенесли
+        }
+        fired.clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) t.prev.next = t.next;
+        else buckets[(int) (t.deadlineTick & mask)] = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.linked = false;
+        size--;
+    }
+}
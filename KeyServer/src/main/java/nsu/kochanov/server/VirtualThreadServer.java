@@ -0,0 +1,517 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.crypto.ParallelRsaKeyGenerator;
+import nsu.kochanov.crypto.PemUtils;
+import nsu.kochanov.metrics.LatencyHistogram;
+import nsu.kochanov.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Альтернативный режим сервера ({@code --mode virtual}): вместо селекторов и цепочек
+ * {@link CompletableFuture} каждое соединение и каждый запрос обслуживаются своей виртуальной
+ * нитью с обычным блокирующим кодом. Протокол тот же, что у {@link KeyServer}.
+ * <p>
+ * Генерация пары, подпись и кодирование в PEM идут одной задачей на пуле из {@code --threads}
+ * платформенных нитей (по умолчанию — число ядер), как в основном режиме. Виртуальная нить
+ * запроса ждёт результат, не занимая нить-носитель: многосекундный расчёт RSA на носителях
+ * остановил бы accept и ответы из кэша, ведь носителей тоже по одному на ядро. Нити пула
+ * живут долго, поэтому подписывающие объекты в {@code ThreadLocal} ({@code CertificateIssuer})
+ * создаются один раз на нить, а не на каждый запрос.
+ * Соединение в режиме нескольких запросов — область ({@code try} с ресурсами над executor'ом
+ * виртуальных нитей) над нитями своих запросов: она не закрывается, пока не отправлены
+ * ответы на все принятые запросы. {@code StructuredTaskScope} в JDK 21 — preview, поэтому
+ * структура построена на {@link ExecutorService#close()}.
+ * <p>
+ * Дедупликация, кэш и очередь генерации общие с основным режимом ({@link ResultCache},
+ * {@link ResultStore}, {@link GenerationScheduler}): приоритеты, справедливость по клиентам и
+ * лимит очереди те же. Первый запросивший ключ кладёт в кэш {@link Generation} и уже вне
+ * вычисления в кэше читает хранилище или ставит задачу в очередь — чтение с диска не держит
+ * блокировку карты. Соединение помнит генерации, которые ждёт; когда клиент уходит, задачи,
+ * которые больше никто не ждёт, снимаются с очереди или понижаются по {@code --orphan-policy}.
+ * Запаса пар и дедлайна на запись здесь нет.
+ */
+public final class VirtualThreadServer {
+    private static final Logger LOG = Logger.getLogger(VirtualThreadServer.class.getName());
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int port;
+    private final KeyStoreService keyStoreService;
+    private final KeyProfile defaultProfile;
+    private final int readTimeoutMillis; // 0 — без ограничения
+    private final Metrics metrics = new Metrics();
+
+    private final ResultCache nameToFuture;
+    private final ResultStore store; // null, если хранилище не задано
+    private final int generatorThreads;
+    private final ThreadPoolExecutor generatorPool;
+    private final GenerationScheduler scheduler;
+    private final ParallelRsaKeyGenerator parallelRsa; // null — генератор JDK
+    private final boolean fairByPrefix;
+    private final boolean demoteOrphans; // иначе брошенные задачи снимаются с очереди
+    private final Set<InetAddress> highPriorityAddresses = new HashSet<>(); // откуда принимаем priority=high
+
+    private final LongAdder accepted;
+    private final LongAdder storeHits;
+    private final LongAdder bytesWritten;
+    private final LongAdder readTimeouts;
+    private final LongAdder orphaned;
+    private final LongAdder savedGenerations;
+    private final LongAdder demotedGenerations;
+    private final LongAdder wastedGenerations;
+    private final LatencyHistogram keygenNanos;
+    private final LatencyHistogram signNanos;
+    private final LatencyHistogram pemNanos;
+    private final LatencyHistogram responseNanos;
+
+    public VirtualThreadServer(ServerConfig config, KeyStoreService keyStoreService) throws IOException {
+        this.port = config.port;
+        this.keyStoreService = keyStoreService;
+        this.defaultProfile = config.defaultProfile;
+        this.readTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(config.readTimeoutSeconds);
+        this.nameToFuture = new ResultCache(config.cacheMaxBytes, TimeUnit.SECONDS.toNanos(config.cacheMaxIdleSeconds), metrics);
+        this.store = config.storeDir == null ? null : ResultStore.open(config.storeDir);
+        this.generatorThreads = config.generatorThreads;
+        this.generatorPool = new ThreadPoolExecutor(generatorThreads, generatorThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "keygen-thread");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = new GenerationScheduler(generatorPool, config.queueCapacity, metrics);
+        this.parallelRsa = switch (config.rsaEngine) {
+            case "jdk" -> null;
+            case "parallel" -> new ParallelRsaKeyGenerator(Runtime.getRuntime().availableProcessors());
+            default -> throw new IllegalArgumentException("--rsa-engine must be 'jdk' or 'parallel'");
+        };
+        this.fairByPrefix = switch (config.fairBy) {
+            case "address" -> false;
+            case "prefix" -> true;
+            default -> throw new IllegalArgumentException("--fair-by must be 'address' or 'prefix'");
+        };
+        this.demoteOrphans = switch (config.orphanPolicy) {
+            case "drop" -> false;
+            case "demote" -> true;
+            default -> throw new IllegalArgumentException("--orphan-policy must be 'drop' or 'demote'");
+        };
+        for (String host : config.highPriorityFrom) {
+            if (!host.isBlank()) highPriorityAddresses.add(InetAddress.getByName(host.strip()));
+        }
+        this.accepted = metrics.counter("connections.accepted");
+        this.storeHits = metrics.counter("store.hits");
+        this.bytesWritten = metrics.counter("bytes.written");
+        this.readTimeouts = metrics.counter("connections.timeout.read");
+        this.orphaned = metrics.counter("generation.orphaned");
+        this.savedGenerations = metrics.counter("generation.saved");
+        this.demotedGenerations = metrics.counter("generation.demoted");
+        this.wastedGenerations = metrics.counter("generation.wasted");
+        this.keygenNanos = metrics.histogram("keygen.nanos");
+        this.signNanos = metrics.histogram("sign.nanos");
+        this.pemNanos = metrics.histogram("pem.nanos");
+        this.responseNanos = metrics.histogram("response.nanos");
+        if (store != null) metrics.gauge("store.entries", store::size);
+    }
+
+    /** Соединение: кто клиент и какие незавершённые генерации оно ждёт. */
+    private static final class Conn {
+        final String client; // адрес клиента — ключ справедливой очереди
+        final InetAddress address;
+        private final List<Generation> waiting = new ArrayList<>(); // под this
+        private boolean closed; // под this
+
+        Conn(String client, InetAddress address) {
+            this.client = client;
+            this.address = address;
+        }
+
+        /** false — клиент уже ушёл, ждать незачем. */
+        synchronized boolean add(Generation g) {
+            if (closed) return false;
+            waiting.add(g);
+            return true;
+        }
+
+        /** true — генерацию ещё не отпустил {@link #close()}, и отпустить её должен вызывающий. */
+        synchronized boolean remove(Generation g) {
+            return waiting.remove(g);
+        }
+
+        /** Клиент ушёл: генерации, которые соединение ещё ждало. */
+        synchronized List<Generation> close() {
+            closed = true;
+            List<Generation> left = List.copyOf(waiting);
+            waiting.clear();
+            return left;
+        }
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    public void start() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            LOG.info(() -> "Listening on tcp://0.0.0.0:" + port + " with virtual threads, "
+                    + generatorThreads + " generator threads");
+            Thread.ofVirtual().name("stats").start(this::statsLoop);
+            ThreadFactory connections = Thread.ofVirtual().name("conn-", 0).factory();
+            while (true) {
+                SocketChannel ch = server.accept();
+                accepted.increment();
+                connections.newThread(() -> serve(ch)).start();
+            }
+        }
+    }
+
+    private void statsLoop() {
+        try {
+            while (true) {
+                Thread.sleep(KeyServer.STATS_INTERVAL_MS);
+                nameToFuture.expire();
+                LOG.info(() -> "Stats: " + metrics.snapshot());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(SocketChannel ch) {
+        InetAddress address = ch.socket().getInetAddress();
+        Conn conn = new Conn(address == null ? "?" : address.getHostAddress(), address);
+        try (ch) {
+            // Таймаут чтения работает через адаптер сокета; писать будем прямо в канал
+            Socket socket = ch.socket();
+            socket.setSoTimeout(readTimeoutMillis);
+            InputStream in = socket.getInputStream();
+            ByteBuffer buf = ByteBuffer.allocate(KeyServer.READ_BUFFER_SIZE);
+            if (read(in, buf) < 0) return;
+            if (buf.get(0) == Protocol.PIPELINED) {
+                buf.flip().get();
+                buf.compact();
+                servePipelined(ch, conn, socket, in, buf, Integer.MAX_VALUE);
+            } else if (buf.get(0) == Protocol.BATCH) {
+                while (buf.position() < Protocol.BATCH_HEADER_LEN) {
+                    if (read(in, buf) < 0) return;
+                }
+                buf.flip().get();
+                int count = buf.getInt();
+                buf.compact();
+                if (count <= 0 || count > Protocol.MAX_BATCH) throw new IOException("Invalid batch size " + count);
+                servePipelined(ch, conn, socket, in, buf, count);
+            } else {
+                serveSingle(ch, conn, socket, in, buf);
+            }
+        } catch (SocketTimeoutException e) {
+            readTimeouts.increment();
+            LOG.fine(() -> "Read timeout, closing " + remote(ch));
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "IO error on " + remote(ch), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serveSingle(SocketChannel ch, Conn conn, Socket socket, InputStream in, ByteBuffer buf) throws IOException {
+        String token = nextName(socket, in, buf);
+        if (token == null) return;
+        long received = System.nanoTime();
+        // Как и в основном режиме: конец потока до ответа значит, что клиент ушёл. Нить-наблюдатель
+        // отпускает его генерации и прерывает ожидание; после ответа её выпускает закрытие сокета
+        Thread connThread = Thread.currentThread();
+        Thread.ofVirtual().start(() -> {
+            try {
+                socket.setSoTimeout(0);
+                while (in.read() >= 0) { /* лишние байты после имени не нужны */ }
+            } catch (IOException ignored) {
+                // соединение закрыто: мы ответили, или клиент оборвал его
+            }
+            if (abandon(conn)) connThread.interrupt();
+        });
+        Result res;
+        try {
+            res = obtain(token, conn);
+        } catch (Exception e) {
+            // Как и в основном режиме: при ошибке просто закрываем соединение
+            LOG.log(Level.FINE, "Failed to issue '" + token + "'", e);
+            return;
+        }
+        responseNanos.recordSince(received);
+        write(ch, null, res);
+    }
+
+    /** Режим нескольких запросов; limit — число имён в пакетном режиме, после него чтение прекращается. */
+    private void servePipelined(SocketChannel ch, Conn conn, Socket socket, InputStream in, ByteBuffer buf, int limit)
+            throws IOException, InterruptedException {
+        Semaphore window = new Semaphore(KeyServer.MAX_PIPELINED);
+        ReentrantLock writeLock = new ReentrantLock(); // кадры разных запросов не перемешиваются
+        try (ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+            // Конец потока здесь штатный; клиент ушёл, если чтение или запись ответа оборвались.
+            // Тогда генерации отпускаются, а нити запросов прерываются, чтобы close() их не ждал
+            Runnable gone = () -> {
+                if (abandon(conn)) requests.shutdownNow();
+            };
+            int nextId = 0;
+            try {
+                while (nextId < limit) {
+                    String token;
+                    try {
+                        token = nextName(socket, in, buf);
+                    } catch (SocketTimeoutException e) {
+                        // Пока ответы генерируются, молчание клиента — норма
+                        if (window.availablePermits() < KeyServer.MAX_PIPELINED) continue;
+                        throw e;
+                    }
+                    if (token == null) break;
+                    window.acquire();
+                    int id = nextId++;
+                    try {
+                        requests.submit(() -> {
+                            try {
+                                answer(ch, conn, writeLock, id, token);
+                            } catch (IOException e) {
+                                gone.run();
+                                throw e;
+                            } finally {
+                                window.release();
+                            }
+                            return null;
+                        });
+                    } catch (RejectedExecutionException e) {
+                        break; // запись ответа уже оборвалась, отвечать некому
+                    }
+                }
+            } catch (IOException e) {
+                gone.run();
+                throw e;
+            }
+        } // close() дожидается ответов на все принятые запросы
+    }
+
+    private void answer(SocketChannel ch, Conn conn, ReentrantLock writeLock, int id, String token) throws IOException {
+        long received = System.nanoTime();
+        Result res = null;
+        Throwable err = null;
+        try {
+            res = obtain(token, conn);
+            responseNanos.recordSince(received);
+        } catch (Exception e) {
+            err = e;
+        }
+        ByteBuffer header = ByteBuffer.allocate(Protocol.FRAME_HEADER_LEN)
+                .putInt(id)
+                .put(KeyServer.status(err))
+                .putInt(err == null ? res.keyLength() : 0)
+                .putInt(err == null ? res.certLength() : 0)
+                .flip();
+        writeLock.lock();
+        try {
+            write(ch, header, res);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Готовый результат из кэша или хранилища, ожидание чужой генерации или своя генерация. */
+    private Result obtain(String token, Conn conn) throws Exception {
+        LOG.info(() -> "Request received for name='" + token + "'");
+        IssueRequest req = IssueRequest.parse(token, defaultProfile, keyStoreService.defaultIssuerId());
+        if (!keyStoreService.hasIssuer(req.issuer())) throw new IllegalArgumentException("Unknown issuer '" + req.issuer() + "'");
+        if (req.client() != null) throw new IllegalArgumentException("Option 'client' is accepted only from cluster peers");
+        if (req.priority() == GenerationScheduler.Priority.HIGH && !highPriorityAddresses.contains(conn.address)) {
+            throw new IllegalArgumentException("Priority 'high' is not allowed for this client");
+        }
+        while (true) {
+            Generation[] created = new Generation[1];
+            CompletableFuture<Result> fut = nameToFuture.get(req.cacheKey(), n -> created[0] = new Generation(req, scheduler));
+            // Хранилище читаем уже вне вычисления в кэше: запросы к другим ключам не ждут диска
+            if (created[0] != null) load(req, clientKey(conn, req), created[0]);
+            if (!(fut instanceof Generation g)) return fut.get();
+            if (!g.retain()) {
+                // Брошенную задачу только что сняли с очереди: её future сейчас завершится
+                // и уйдёт из кэша, тогда loader создаст новую
+                Thread.onSpinWait();
+                continue;
+            }
+            if (!conn.add(g)) {
+                release(g);
+                throw new IOException("Client has gone");
+            }
+            try {
+                return g.get();
+            } finally {
+                if (conn.remove(g)) release(g);
+            }
+        }
+    }
+
+    /** Сохранённая пара из хранилища или задача в очереди генерации для только что созданной target. */
+    private void load(IssueRequest req, String client, Generation target) {
+        Result stored = store == null ? null : store.load(req.cacheKey());
+        if (stored != null) {
+            storeHits.increment();
+            target.complete(stored);
+            return;
+        }
+        try {
+            target.setJob(scheduler.submit(req.priority(), client, () -> generate(req, target)));
+        } catch (RejectedExecutionException e) {
+            LOG.warning(() -> "Rejected generation for '" + req.name() + "' from " + client + ": " + e.getMessage());
+            target.completeExceptionally(e);
+        }
+    }
+
+    private String clientKey(Conn conn, IssueRequest req) {
+        if (!fairByPrefix) return conn.client;
+        int dot = req.name().indexOf('.');
+        return dot <= 0 ? conn.client : req.name().substring(0, dot);
+    }
+
+    /** Соединение оборвалось; true — оно ещё ждало генерации, и они отпущены. */
+    private boolean abandon(Conn conn) {
+        List<Generation> left = conn.close();
+        for (Generation g : left) release(g);
+        return !left.isEmpty();
+    }
+
+    /** Как releaseWaiters в {@link KeyServer}: ушёл последний ждущий — снять или понизить задачу. */
+    private void release(Generation g) {
+        if (!g.release()) return;
+        orphaned.increment();
+        if (demoteOrphans) {
+            if (g.demote()) demotedGenerations.increment();
+        } else if (g.drop()) {
+            savedGenerations.increment();
+            g.completeExceptionally(new CancellationException("All waiting clients disconnected"));
+        }
+    }
+
+    /** Выполняется в нити пула по очереди планировщика. */
+    private void generate(IssueRequest req, Generation target) {
+        try {
+            Result result = issue(req);
+            persist(req.cacheKey(), result);
+            // Все ждавшие ушли, пока задача работала: результат останется только в кэше
+            if (target.waiters() == 0) wastedGenerations.increment();
+            target.complete(result);
+            LOG.info(() -> "Generated " + req.profile().id() + " key and certificate for '" + req.name() + "'");
+        } catch (Exception e) {
+            target.completeExceptionally(e);
+            LOG.log(Level.WARNING, "Generation failed for '" + req.name() + "'", e);
+        }
+    }
+
+    /** Выполняется в нити пула: пара, подпись и PEM подряд, как в {@link KeyServer}. */
+    private Result issue(IssueRequest req) throws Exception {
+        long t0 = System.nanoTime();
+        // Простаивающие нити пула помогают искать простые
+        KeyPair kp = parallelRsa != null && req.profile().rsaBits() > 0
+                ? parallelRsa.generate(req.profile().rsaBits(), RANDOM, Math.max(0, generatorThreads - generatorPool.getActiveCount()))
+                : req.profile().generate(RANDOM);
+        long t1 = System.nanoTime();
+        keygenNanos.record(t1 - t0);
+        X509Certificate cert = keyStoreService.getIssuer(req.issuer()).issue(req.name(), kp.getPublic());
+        long t2 = System.nanoTime();
+        signNanos.record(t2 - t1);
+        Result result = Result.of(
+                PemUtils.toPem(kp.getPrivate()).getBytes(StandardCharsets.US_ASCII),
+                PemUtils.toPem(cert).getBytes(StandardCharsets.US_ASCII)
+        );
+        pemNanos.recordSince(t2);
+        return result;
+    }
+
+    private void write(SocketChannel ch, ByteBuffer header, Result res) throws IOException {
+        if (res == null || !res.inMemory()) {
+            if (header != null) writeFully(ch, header);
+            if (res == null) return;
+            long pos = res.filePosition();
+            long end = pos + res.size();
+            while (pos < end) {
+                long n = res.file().transferTo(pos, end - pos, ch);
+                pos += n;
+                bytesWritten.add(n);
+            }
+            return;
+        }
+        ByteBuffer[] parts = header == null
+                ? new ByteBuffer[]{res.keyPem(), res.certPem()}
+                : new ByteBuffer[]{header, res.keyPem(), res.certPem()};
+        ByteBuffer last = parts[parts.length - 1];
+        while (last.hasRemaining()) bytesWritten.add(ch.write(parts));
+    }
+
+    private void writeFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) bytesWritten.add(ch.write(buf));
+    }
+
+    /**
+     * Следующее имя из потока; null — клиент закрыл соединение. Срок --read-timeout
+     * отсчитывается на всё имя, а не на каждое чтение: присылая по байту, его не продлить.
+     */
+    private String nextName(Socket socket, InputStream in, ByteBuffer buf) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        while (true) {
+            buf.flip();
+            String name;
+            try {
+                name = KeyServer.nextName(buf);
+            } finally {
+                buf.compact();
+            }
+            if (name != null) return name;
+            if (readTimeoutMillis > 0) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) throw new SocketTimeoutException("Read timed out");
+                socket.setSoTimeout((int) left);
+            }
+            if (read(in, buf) < 0) return null;
+        }
+    }
+
+    private static int read(InputStream in, ByteBuffer buf) throws IOException {
+        int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        if (n > 0) buf.position(buf.position() + n);
+        return n;
+    }
+
+    private void persist(String name, Result result) {
+        if (store == null) return;
+        try {
+            store.append(name, result);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to persist result for '" + name + "'", e);
+        }
+    }
+
+    private static String remote(SocketChannel ch) {
+        try {
+            return String.valueOf(ch.getRemoteAddress());
+        } catch (IOException e) {
+            return "?";
+        }
+    }
+}
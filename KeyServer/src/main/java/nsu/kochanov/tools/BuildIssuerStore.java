@@ -0,0 +1,74 @@
+package nsu.kochanov.tools;
+
+import nsu.kochanov.crypto.IssuerStore;
+import nsu.kochanov.crypto.PemUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Собирает файл {@link IssuerStore} из PEM: {@code BuildIssuerStore <out> <id> <key.pem> <cert.pem|DN> ...}
+ * (по тройке на CA). Если вместо сертификата передан DN, он и будет именем CA в выпускаемых
+ * сертификатах; если сертификат — имя берётся из его Subject, а ключ проверяется на соответствие.
+ */
+public final class BuildIssuerStore {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4 || (args.length - 1) % 3 != 0) {
+            throw new IllegalArgumentException("Usage: BuildIssuerStore <out> <id> <key.pem> <cert.pem|DN> [<id> <key.pem> <cert.pem|DN> ...]");
+        }
+        Path out = Path.of(args[0]);
+        List<IssuerStore.Entry> entries = new ArrayList<>();
+        for (int i = 1; i < args.length; i += 3) {
+            String id = args[i];
+            PrivateKey key = PemUtils.readPrivateKey(Path.of(args[i + 1]));
+            byte[] name;
+            byte[] cert = null;
+            Path certPath = Path.of(args[i + 2]);
+            if (Files.isRegularFile(certPath)) {
+                if (!(PemUtils.readPemObject(certPath) instanceof X509CertificateHolder holder)) {
+                    throw new IllegalArgumentException(certPath + ": not a certificate");
+                }
+                checkKeyMatches(id, key, new JcaX509CertificateConverter().getCertificate(holder).getPublicKey());
+                name = holder.getSubject().getEncoded();
+                cert = holder.getEncoded();
+            } else {
+                name = new X500Name(args[i + 2]).getEncoded();
+            }
+            entries.add(new IssuerStore.Entry(id, key.getAlgorithm(), name, key.getEncoded(), cert));
+        }
+        IssuerStore.write(out, entries);
+        System.out.println(entries.size() + " issuer(s) written to " + out);
+    }
+
+    private static void checkKeyMatches(String id, PrivateKey key, PublicKey certKey) throws Exception {
+        String algorithm = switch (key.getAlgorithm()) {
+            case "RSA" -> "SHA256withRSA";
+            case "Ed25519" -> "Ed25519";
+            default -> "SHA256withECDSA";
+        };
+        byte[] probe = id.getBytes(StandardCharsets.UTF_8);
+        Signature s = Signature.getInstance(algorithm);
+        s.initSign(key);
+        s.update(probe);
+        byte[] sig = s.sign();
+        boolean ok;
+        try {
+            s.initVerify(certKey);
+            s.update(probe);
+            ok = s.verify(sig);
+        } catch (InvalidKeyException e) {
+            ok = false; // ключ сертификата другого алгоритма
+        }
+        if (!ok) throw new IllegalArgumentException("Key of issuer '" + id + "' does not match its certificate");
+    }
+}
@@ -1,20 +1,19 @@
 package nsu.kochanov.tools;
 
+import nsu.kochanov.crypto.KeyProfile;
 import nsu.kochanov.crypto.PemUtils;
 
 import java.nio.file.Path;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.SecureRandom;
 
 public final class GenCaKey {
     public static void main(String[] args) throws Exception {
         Path out = Path.of(args.length > 0 ? args[0] : "ca.key");
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-        kpg.initialize(8192, new SecureRandom());
-        KeyPair kp = kpg.generateKeyPair();
-        PemUtils.writePem(out, kp.getPrivate());
-        System.out.println("CA private key written to " + out);
+        KeyProfile profile = args.length > 1 ? KeyProfile.parse(args[1]) : KeyProfile.RSA_8192;
+        KeyPair kp = profile.generate(new SecureRandom());
+        PemUtils.writePrivateKey(out, kp.getPrivate());
+        System.out.println("CA private key (" + profile.id() + ") written to " + out);
     }
 }
 
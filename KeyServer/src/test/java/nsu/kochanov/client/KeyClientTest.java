@@ -0,0 +1,94 @@
+package nsu.kochanov.client;
+
+import nsu.kochanov.server.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class KeyClientTest {
+    private static final int REQUESTS = 2000;
+    private static final int PEM_LEN = 4000;
+    // Длинные параметры раздувают запросы (~10 МиБ) сверх буферов сокета, имён же всего десять
+    private static final String PADDING = Protocol.OPTION_SEPARATOR + "pad=" + "x".repeat(5000);
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Сервер, который не читает новые имена, пока клиент не заберёт ответы (~16 МиБ), не
+     * останавливает клиента: имена уходят, пока ответы читаются.
+     */
+    @Test
+    void readsResponsesWhileSendingNames() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) names.add("n" + i % 10);
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReceiveBufferSize(64 * 1024);
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            CompletableFuture<Long> received = CompletableFuture.supplyAsync(() -> answerAllThenRead(server));
+            CompletableFuture<Void> client = CompletableFuture.runAsync(() -> {
+                try {
+                    KeyClient.fetchPipelined("127.0.0.1", server.getLocalPort(), names, PADDING, dir, false);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            client.get(60, TimeUnit.SECONDS); // TimeoutException — обе стороны встали на полных буферах
+            long expected = 1 + (long) REQUESTS * ("n0".length() + PADDING.length() + 1);
+            assertEquals(expected, (long) received.get(60, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(pem('k', i), Files.readAllBytes(dir.resolve("n" + i + ".key")));
+            assertArrayEquals(pem('c', i), Files.readAllBytes(dir.resolve("n" + i + ".crt")));
+        }
+    }
+
+    /** Читает первый байт, отвечает на все запросы разом и только потом дочитывает поток до конца. */
+    private static long answerAllThenRead(ServerSocket server) {
+        try (Socket s = server.accept()) {
+            s.setSendBufferSize(64 * 1024);
+            InputStream in = s.getInputStream();
+            if (in.read() != Protocol.PIPELINED) throw new IOException("Expected pipelined mode");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            for (int id = 0; id < REQUESTS; id++) {
+                out.writeInt(id);
+                out.writeByte(Protocol.STATUS_OK);
+                out.writeInt(PEM_LEN);
+                out.writeInt(PEM_LEN);
+                out.write(pem('k', id % 10));
+                out.write(pem('c', id % 10));
+            }
+            out.flush();
+            long total = 1;
+            byte[] buf = new byte[64 * 1024];
+            for (int n; (n = in.read(buf)) >= 0; ) total += n;
+            return total;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] pem(char fill, int n) {
+        byte[] b = new byte[PEM_LEN];
+        Arrays.fill(b, (byte) fill);
+        b[0] = (byte) ('0' + n);
+        return b;
+    }
+}
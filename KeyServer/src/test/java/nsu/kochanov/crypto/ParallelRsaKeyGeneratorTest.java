@@ -0,0 +1,75 @@
+package nsu.kochanov.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelRsaKeyGeneratorTest {
+    private static final BigInteger E = BigInteger.valueOf(65537);
+
+    /** Пара корректна при поиске в одной нити и с помощниками: длина n, p ≠ q, e·d ≡ 1 mod λ(n), подпись. */
+    @Test
+    void generatesValidKeyPairs() throws Exception {
+        ParallelRsaKeyGenerator generator = new ParallelRsaKeyGenerator(2);
+        SecureRandom random = new SecureRandom();
+        for (int bits : new int[]{1024, 2048}) {
+            for (int helpers : new int[]{0, 2}) {
+                String where = bits + " bits, " + helpers + " helpers";
+                KeyPair kp = generator.generate(bits, random, helpers);
+                RSAPublicKey pub = (RSAPublicKey) kp.getPublic();
+                RSAPrivateCrtKey priv = (RSAPrivateCrtKey) kp.getPrivate();
+                BigInteger n = pub.getModulus();
+                BigInteger p = priv.getPrimeP();
+                BigInteger q = priv.getPrimeQ();
+
+                assertEquals(bits, n.bitLength(), where);
+                assertEquals(E, pub.getPublicExponent(), where);
+                assertEquals(n, p.multiply(q), where);
+                assertNotEquals(p, q, where);
+                assertEquals(bits / 2, p.bitLength(), where);
+                assertEquals(bits / 2, q.bitLength(), where);
+                assertTrue(p.isProbablePrime(100) && q.isProbablePrime(100), where + ": factors are not prime");
+                assertTrue(p.subtract(q).abs().bitLength() > bits / 2 - 100, where + ": p and q are too close");
+
+                BigInteger p1 = p.subtract(BigInteger.ONE);
+                BigInteger q1 = q.subtract(BigInteger.ONE);
+                BigInteger lambda = p1.divide(p1.gcd(q1)).multiply(q1);
+                BigInteger d = priv.getPrivateExponent();
+                assertEquals(BigInteger.ONE, E.multiply(d).mod(lambda), where + ": e·d mod λ(n)");
+                assertTrue(d.bitLength() > bits / 2, where + ": d is too small");
+                assertEquals(d.mod(p1), priv.getPrimeExponentP(), where);
+                assertEquals(d.mod(q1), priv.getPrimeExponentQ(), where);
+                assertEquals(BigInteger.ONE, q.multiply(priv.getCrtCoefficient()).mod(p), where);
+
+                byte[] message = ("message for " + where).getBytes(StandardCharsets.US_ASCII);
+                Signature signer = Signature.getInstance("SHA256withRSA");
+                signer.initSign(priv);
+                signer.update(message);
+                byte[] signature = signer.sign();
+                Signature verifier = Signature.getInstance("SHA256withRSA");
+                verifier.initVerify(pub);
+                verifier.update(message);
+                assertTrue(verifier.verify(signature), where + ": signature does not verify");
+            }
+        }
+    }
+
+    /** Длины меньше 1024 и нечётные отклоняются. */
+    @Test
+    void rejectsUnsupportedKeySizes() {
+        ParallelRsaKeyGenerator generator = new ParallelRsaKeyGenerator(1);
+        assertThrows(IllegalArgumentException.class, () -> generator.generate(512, new SecureRandom(), 0));
+        assertThrows(IllegalArgumentException.class, () -> generator.generate(2047, new SecureRandom(), 0));
+    }
+}
@@ -0,0 +1,80 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.crypto.PemUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import static nsu.kochanov.server.TestServers.connect;
+import static nsu.kochanov.server.TestServers.freePort;
+import static nsu.kochanov.server.TestServers.stop;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CaReloadTest {
+    @TempDir
+    Path dir;
+
+    /** Генерацию, стоявшую в очереди во время перезагрузки CA, подписывает новый CA по умолчанию. */
+    @Test
+    void queuedGenerationIsSignedByReloadedCa() throws Exception {
+        Path oldKey = dir.resolve("old.key");
+        Path newKey = dir.resolve("new.key");
+        PemUtils.writePrivateKey(oldKey, KeyProfile.RSA_2048.generate(new SecureRandom()).getPrivate());
+        KeyPair newCa = KeyProfile.RSA_2048.generate(new SecureRandom());
+        PemUtils.writePrivateKey(newKey, newCa.getPrivate());
+
+        int port = freePort();
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        config.generatorThreads = 1; // одна нить: пока она занята RSA, остальное ждёт в очереди
+        config.ioThreads = 1;
+        config.keyPoolHigh = 0;
+        config.defaultProfile = KeyProfile.EC_P256;
+        KeyServer server = TestServers.start(config, KeyStoreService.load(oldKey, "CN=Old CA"), port);
+        try (Socket s = connect(port)) {
+            String requests = "\u0001"
+                    + "slow-1\u001Fprofile=rsa-3072\u0000"
+                    + "slow-2\u001Fprofile=rsa-3072\u0000"
+                    + "queued\u0000";
+            s.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+            s.shutdownOutput();
+            // queued — последняя в очереди того же клиента: раз очередь не пуста, она ещё не начата
+            while (server.metrics().snapshot().get("scheduler.submitted") < 3
+                    || server.metrics().snapshot().get("scheduler.queued") < 1) {
+                Thread.sleep(5);
+            }
+            server.reload(null, KeyStoreService.load(newKey, "CN=New CA"));
+
+            Map<Integer, byte[]> certs = new HashMap<>();
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            for (int i = 0; i < 3; i++) {
+                int id = in.readInt();
+                assertEquals(Protocol.STATUS_OK, in.readByte(), "status of request " + id);
+                byte[] key = new byte[in.readInt()];
+                byte[] cert = new byte[in.readInt()];
+                in.readFully(key);
+                in.readFully(cert);
+                certs.put(id, cert);
+            }
+            X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(certs.get(2)));
+            cert.verify(newCa.getPublic());
+            assertEquals("CN=New CA", cert.getIssuerX500Principal().getName());
+        } finally {
+            stop(server);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.crypto.PemUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+
+import static nsu.kochanov.server.TestServers.connect;
+import static nsu.kochanov.server.TestServers.freePort;
+import static nsu.kochanov.server.TestServers.stop;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ForwardedConnectionTest {
+    private static final String SPOOFED = "\u0002alice\u001Fclient=spoofed-tenant-42\u0000";
+
+    @TempDir
+    Path dir;
+
+    /** С адреса не из состава кластера режим FORWARDED не принимается: соединение закрывается без ответа. */
+    @Test
+    void rejectsForwardedModeFromNonClusterAddress() throws Exception {
+        int port = freePort();
+        KeyServer server = start(port, "192.0.2.1:9"); // TEST-NET: второго узла на 127.0.0.1 нет
+        try {
+            try (Socket s = connect(port)) {
+                s.getOutputStream().write(SPOOFED.getBytes(StandardCharsets.US_ASCII));
+                assertEquals(-1, s.getInputStream().read(), "no frame for a spoofed peer");
+            }
+            // Обычному клиенту client= по-прежнему запрещён
+            try (Socket s = connect(port)) {
+                s.getOutputStream().write("\u0001alice\u001Fclient=x\u0000".getBytes(StandardCharsets.US_ASCII));
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                assertEquals(0, in.readInt());
+                assertEquals(Protocol.STATUS_ERROR, in.readByte());
+            }
+        } finally {
+            stop(server);
+        }
+    }
+
+    /** Соединение узла кластера без запросов в работе закрывается по дедлайну чтения, как обычное. */
+    @Test
+    void closesIdlePeerConnectionAfterReadTimeout() throws Exception {
+        int port = freePort();
+        KeyServer server = start(port, "127.0.0.1:" + freePort());
+        try (Socket s = connect(port)) {
+            s.getOutputStream().write(Protocol.FORWARDED);
+            long t0 = System.nanoTime();
+            InputStream in = s.getInputStream();
+            assertEquals(-1, in.read(), "idle peer connection must be closed");
+            long elapsedMs = (System.nanoTime() - t0) / 1_000_000;
+            assertTrue(elapsedMs >= 500, "closed after " + elapsedMs + " ms, before the read timeout");
+        } finally {
+            stop(server);
+        }
+    }
+
+    private KeyServer start(int port, String peer) throws Exception {
+        Path caKey = dir.resolve("ca.key");
+        if (!Files.exists(caKey)) PemUtils.writePrivateKey(caKey, KeyProfile.RSA_2048.generate(new SecureRandom()).getPrivate());
+        Path cluster = dir.resolve("cluster-" + port + ".conf");
+        Files.writeString(cluster, "n1 127.0.0.1:" + port + "\nn2 " + peer + "\n");
+        ServerConfig config = new ServerConfig();
+        config.clusterConfig = cluster;
+        config.nodeId = "n1";
+        config.readTimeoutSeconds = 1;
+        config.generatorThreads = 1;
+        config.ioThreads = 1;
+        config.keyPoolHigh = 0;
+        config.drainTimeoutSeconds = 5;
+        return TestServers.start(config, KeyStoreService.load(caKey, "CN=Test CA"), port);
+    }
+}
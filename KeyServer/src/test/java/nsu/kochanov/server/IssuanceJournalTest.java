@@ -0,0 +1,79 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.metrics.Metrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IssuanceJournalTest {
+    private static final int HEADER_LEN = 7; // type(1) | keyLen(2) | crc32(4)
+
+    @TempDir
+    Path dir;
+
+    /** Записи до оборванной остаются в силе, оборванная запись в конце файла отбрасывается. */
+    @Test
+    void recoversUnfinishedKeysBeforeTornTail() throws Exception {
+        try (IssuanceJournal journal = IssuanceJournal.open(dir, new Metrics())) {
+            journal.requested("alpha");
+            journal.requested("beta");
+            journal.requested("gamma");
+            journal.done("beta");
+            journal.awaitDurable(journal.requested("delta-key"));
+        }
+        Path file = dir.resolve("journal.log");
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 4); // заголовок delta-key цел, ключ обрезан
+        }
+
+        try (IssuanceJournal journal = IssuanceJournal.open(dir, new Metrics())) {
+            assertEquals(List.of("alpha", "gamma"), journal.recovered());
+        }
+    }
+
+    /** Повреждённая запись обрывает разбор: всё после неё не восстанавливается. */
+    @Test
+    void stopsAtCorruptedRecord() throws Exception {
+        try (IssuanceJournal journal = IssuanceJournal.open(dir, new Metrics())) {
+            journal.requested("alpha");
+            journal.requested("beta");
+            journal.awaitDurable(journal.requested("gamma"));
+        }
+        Path file = dir.resolve("journal.log");
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[2 * HEADER_LEN + "alpha".length()] ^= 1; // первый байт ключа beta
+        Files.write(file, bytes);
+
+        try (IssuanceJournal journal = IssuanceJournal.open(dir, new Metrics())) {
+            assertEquals(List.of("alpha"), journal.recovered());
+        }
+    }
+
+    /** Открытие переписывает файл: в нём остаются только незавершённые ключи, и они переживают новое открытие. */
+    @Test
+    void reopenCompactsToUnfinishedKeys() throws Exception {
+        try (IssuanceJournal journal = IssuanceJournal.open(dir, new Metrics())) {
+            for (int i = 0; i < 100; i++) journal.requested("key-" + i);
+            long last = 0;
+            for (int i = 0; i < 100; i++) {
+                if (i != 42) last = journal.done("key-" + i);
+            }
+            journal.awaitDurable(last);
+        }
+        IssuanceJournal reopened = IssuanceJournal.open(dir, new Metrics());
+        reopened.close();
+        assertEquals(List.of("key-42"), reopened.recovered());
+        assertEquals(HEADER_LEN + "key-42".length(), Files.size(dir.resolve("journal.log")));
+
+        try (IssuanceJournal journal = IssuanceJournal.open(dir, new Metrics())) {
+            assertEquals(List.of("key-42"), journal.recovered());
+        }
+    }
+}
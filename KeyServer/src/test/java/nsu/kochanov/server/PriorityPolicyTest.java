@@ -0,0 +1,75 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.crypto.PemUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.List;
+
+import static nsu.kochanov.server.TestServers.connect;
+import static nsu.kochanov.server.TestServers.freePort;
+import static nsu.kochanov.server.TestServers.stop;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PriorityPolicyTest {
+    private static final String REQUESTS = "\u0001"
+            + "urgent\u001Fpriority=high\u0000"
+            + "regular\u001Fpriority=normal\u0000"
+            + "background\u001Fpriority=low\u0000";
+
+    @TempDir
+    Path dir;
+
+    /** Без --high-priority-from priority=high отклоняется, normal и low обслуживаются. */
+    @Test
+    void rejectsHighPriorityFromUntrustedAddress() throws Exception {
+        byte[] statuses = statuses(List.of());
+        assertEquals(Protocol.STATUS_ERROR, statuses[0]);
+        assertEquals(Protocol.STATUS_OK, statuses[1]);
+        assertEquals(Protocol.STATUS_OK, statuses[2]);
+    }
+
+    /** С адреса из --high-priority-from priority=high принимается. */
+    @Test
+    void acceptsHighPriorityFromTrustedAddress() throws Exception {
+        byte[] statuses = statuses(List.of("127.0.0.1"));
+        assertEquals(Protocol.STATUS_OK, statuses[0]);
+        assertEquals(Protocol.STATUS_OK, statuses[1]);
+        assertEquals(Protocol.STATUS_OK, statuses[2]);
+    }
+
+    private byte[] statuses(List<String> highPriorityFrom) throws Exception {
+        Path caKey = dir.resolve("ca.key");
+        PemUtils.writePrivateKey(caKey, KeyProfile.EC_P256.generate(new SecureRandom()).getPrivate());
+        int port = freePort();
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        config.generatorThreads = 1;
+        config.ioThreads = 1;
+        config.keyPoolHigh = 0;
+        config.defaultProfile = KeyProfile.EC_P256;
+        config.highPriorityFrom = highPriorityFrom;
+        KeyServer server = TestServers.start(config, KeyStoreService.load(caKey, "CN=Test CA"), port);
+        try (Socket s = connect(port)) {
+            s.getOutputStream().write(REQUESTS.getBytes(StandardCharsets.US_ASCII));
+            s.shutdownOutput();
+            byte[] statuses = new byte[3]; // по id запроса: кадры приходят не по порядку
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            for (int i = 0; i < 3; i++) {
+                int id = in.readInt();
+                statuses[id] = in.readByte();
+                in.skipNBytes(in.readInt() + (long) in.readInt());
+            }
+            return statuses;
+        } finally {
+            stop(server);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package nsu.kochanov.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultStoreTest {
+    private static final int MAGIC = 0x4B535231;
+    private static final int HEADER_LEN = 20;
+    private static final int SCAN_WINDOW = 1 << 20;
+
+    @TempDir
+    Path dir;
+
+    /** Сегмент больше 2 ГиБ (разреженный файл) открывается, и запись за этой границей читается. */
+    @Test
+    void reopensSegmentLargerThan2GiB() throws Exception {
+        Path file = dir.resolve("results.seg");
+        byte[] name = "big".getBytes(StandardCharsets.US_ASCII);
+        int keyLen = 2_000_000_000;
+        int certLen = 200_000_000;
+        long next = HEADER_LEN + name.length + (long) keyLen + certLen;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.allocate(HEADER_LEN + name.length)
+                    .putInt(MAGIC).putInt(0).putInt(name.length).putInt(keyLen).putInt(certLen).put(name).flip());
+            ch.write(ByteBuffer.wrap(new byte[1]), next - 1); // остальное — дыра в файле
+        }
+        byte[] key = pem('k', 3000);
+        byte[] cert = pem('c', 1500);
+        try (ResultStore store = ResultStore.open(dir)) {
+            assertTrue(store.contains("big"));
+            store.append("after", Result.of(key, cert));
+        }
+        assertTrue(Files.size(file) > Integer.MAX_VALUE);
+
+        try (ResultStore store = ResultStore.open(dir)) {
+            assertEquals(2, store.size());
+            Result r = store.load("after");
+            assertTrue(r.filePosition() > Integer.MAX_VALUE);
+            assertArrayEquals(concat(key, cert), read(r));
+        }
+    }
+
+    /** Имя, попавшее на границу окна чтения, и записи в следующих окнах находятся все. */
+    @Test
+    void findsRecordsAcrossScanWindows() throws Exception {
+        String straddling = "n".repeat(100);
+        // Первая запись кончается так, что заголовок второй ещё в первом окне, а имя — уже нет
+        int firstKeyLen = SCAN_WINDOW - 50 - HEADER_LEN - (HEADER_LEN + 1);
+        int count = 500; // ещё около 2 МиБ: несколько окон
+        try (ResultStore store = ResultStore.open(dir)) {
+            store.append("a", Result.of(pem('k', firstKeyLen), new byte[0]));
+            store.append(straddling, Result.of(pem('k', 10), pem('c', 10)));
+            for (int i = 0; i < count; i++) {
+                store.append("name-" + i, Result.of(pem('k', 3000 + i), pem('c', 1500)));
+            }
+        }
+        try (ResultStore store = ResultStore.open(dir)) {
+            assertEquals(count + 2, store.size());
+            assertArrayEquals(concat(pem('k', 10), pem('c', 10)), read(store.load(straddling)));
+            for (int i = 0; i < count; i += 37) {
+                assertEquals(3000 + i, store.load("name-" + i).keyLength());
+            }
+        }
+    }
+
+    /** Недописанная последняя запись отрезается, предыдущие остаются. */
+    @Test
+    void truncatesTornTail() throws Exception {
+        try (ResultStore store = ResultStore.open(dir)) {
+            store.append("first", Result.of(pem('k', 100), pem('c', 100)));
+            store.append("second", Result.of(pem('k', 100), pem('c', 100)));
+        }
+        Path file = dir.resolve("results.seg");
+        long firstEnd = HEADER_LEN + "first".length() + 200;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 10);
+        }
+        try (ResultStore store = ResultStore.open(dir)) {
+            assertEquals(1, store.size());
+            assertTrue(store.contains("first"));
+        }
+        assertEquals(firstEnd, Files.size(file));
+    }
+
+    private static byte[] pem(char fill, int len) {
+        byte[] b = new byte[len];
+        Arrays.fill(b, (byte) fill);
+        return b;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static byte[] read(Result r) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(r.size());
+        while (buf.hasRemaining()) {
+            if (r.file().read(buf, r.filePosition() + buf.position()) < 0) break;
+        }
+        return buf.array();
+    }
+}
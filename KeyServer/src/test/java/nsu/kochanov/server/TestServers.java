@@ -0,0 +1,53 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyStoreService;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/** Запуск {@link KeyServer} в тестах: в своей нити, с ожиданием открытия порта. */
+final class TestServers {
+    private TestServers() {}
+
+    /** Стартует сервер и ждёт, пока он начнёт принимать соединения на port. */
+    static KeyServer start(ServerConfig config, KeyStoreService keys, int port) throws Exception {
+        KeyServer server = new KeyServer(config, keys);
+        Thread t = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "test-server");
+        t.setDaemon(true);
+        t.start();
+        for (int i = 0; ; i++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return server;
+            } catch (IOException e) {
+                if (i == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static void stop(KeyServer server) throws InterruptedException {
+        server.shutdown();
+        server.awaitTermination();
+    }
+
+    static Socket connect(int port) throws IOException {
+        Socket s = new Socket("127.0.0.1", port);
+        s.setSoTimeout(10_000); // дольше дедлайнов сервера: зависание — ошибка теста
+        return s;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package nsu.kochanov.server;
+
+import nsu.kochanov.crypto.KeyProfile;
+import nsu.kochanov.crypto.KeyStoreService;
+import nsu.kochanov.crypto.PemUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.function.Consumer;
+
+import static nsu.kochanov.server.TestServers.connect;
+import static nsu.kochanov.server.TestServers.freePort;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VirtualThreadServerTest {
+    // Две долгие генерации занимают единственную нить пула, пока запрос другого клиента ждёт в очереди
+    private static final String SLOW = "\u0001"
+            + "slow-1\u001Fprofile=rsa-3072\u0000"
+            + "slow-2\u001Fprofile=rsa-3072\u0000";
+
+    @TempDir
+    Path dir;
+
+    /** Клиент ушёл, пока его генерация стояла в очереди: при orphanPolicy=drop она снимается. */
+    @Test
+    void dropsQueuedGenerationWhenClientLeaves() throws Exception {
+        int port = freePort();
+        VirtualThreadServer server = start(port, c -> c.orphanPolicy = "drop");
+        Thread thread = serverThread;
+        try (Socket slow = connect(port)) {
+            slow.getOutputStream().write(SLOW.getBytes(StandardCharsets.US_ASCII));
+            slow.shutdownOutput();
+            awaitMetric(server, "scheduler.submitted", 2);
+            leaveWhileQueued(server, port, "victim");
+            awaitMetric(server, "generation.saved", 1);
+            assertEquals(0, metric(server, "generation.demoted"));
+            readFrames(slow, 2);
+        } finally {
+            thread.interrupt();
+        }
+    }
+
+    /** При orphanPolicy=demote брошенная генерация остаётся в очереди, и её результат получает следующий клиент. */
+    @Test
+    void demotesQueuedGenerationWhenClientLeaves() throws Exception {
+        int port = freePort();
+        VirtualThreadServer server = start(port, c -> c.orphanPolicy = "demote");
+        Thread thread = serverThread;
+        try (Socket slow = connect(port)) {
+            slow.getOutputStream().write(SLOW.getBytes(StandardCharsets.US_ASCII));
+            slow.shutdownOutput();
+            awaitMetric(server, "scheduler.submitted", 2);
+            leaveWhileQueued(server, port, "victim");
+            awaitMetric(server, "generation.demoted", 1);
+            assertEquals(0, metric(server, "generation.saved"));
+            readFrames(slow, 2);
+            byte[] pem = single(port, "victim");
+            assertTrue(new String(pem, StandardCharsets.US_ASCII).contains("BEGIN CERTIFICATE"));
+            assertEquals(3, metric(server, "scheduler.submitted"), "victim is generated once");
+        } finally {
+            thread.interrupt();
+        }
+    }
+
+    /** После перезапуска пара отдаётся из хранилища, а не генерируется заново. */
+    @Test
+    void servesStoredPairAfterRestart() throws Exception {
+        Path storeDir = dir.resolve("store");
+        int port = freePort();
+        start(port, c -> c.storeDir = storeDir);
+        byte[] first;
+        try {
+            first = single(port, "alice");
+        } finally {
+            serverThread.interrupt();
+        }
+        int port2 = freePort();
+        VirtualThreadServer server = start(port2, c -> c.storeDir = storeDir);
+        try {
+            assertArrayEquals(first, single(port2, "alice"));
+            assertEquals(1, metric(server, "store.hits"));
+            assertEquals(0, metric(server, "scheduler.submitted"));
+        } finally {
+            serverThread.interrupt();
+        }
+    }
+
+    private Thread serverThread;
+
+    private VirtualThreadServer start(int port, Consumer<ServerConfig> tune) throws Exception {
+        Path caKey = dir.resolve("ca.key");
+        if (!caKey.toFile().exists()) PemUtils.writePrivateKey(caKey, KeyProfile.EC_P256.generate(new SecureRandom()).getPrivate());
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        config.mode = "virtual";
+        config.generatorThreads = 1;
+        config.defaultProfile = KeyProfile.EC_P256;
+        tune.accept(config);
+        VirtualThreadServer server = new VirtualThreadServer(config, KeyStoreService.load(caKey, "CN=Test CA"));
+        // Прерывание нити в accept закрывает канал сервера: так тест его и останавливает
+        serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException ignored) {
+            }
+        }, "test-virtual-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        for (int i = 0; ; i++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return server;
+            } catch (IOException e) {
+                if (i == 100) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Запрашивает name в обычном режиме и закрывает соединение, как только запрос встал в очередь:
+     * у клиентов с одного адреса очередь общая, так что он ждёт за обеими долгими генерациями.
+     */
+    private static void leaveWhileQueued(VirtualThreadServer server, int port, String name) throws Exception {
+        try (Socket s = connect(port)) {
+            s.getOutputStream().write((name + "\u0000").getBytes(StandardCharsets.US_ASCII));
+            while (metric(server, "scheduler.submitted") < 3) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    private static void awaitMetric(VirtualThreadServer server, String name, long value) throws InterruptedException {
+        for (int i = 0; i < 1000 && metric(server, name) < value; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(value, metric(server, name), name);
+    }
+
+    private static long metric(VirtualThreadServer server, String name) {
+        return server.metrics().snapshot().get(name);
+    }
+
+    private static byte[] single(int port, String name) throws IOException {
+        try (Socket s = connect(port)) {
+            s.getOutputStream().write((name + "\u0000").getBytes(StandardCharsets.US_ASCII));
+            return s.getInputStream().readAllBytes();
+        }
+    }
+
+    private static void readFrames(Socket s, int count) throws IOException {
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        for (int i = 0; i < count; i++) {
+            in.readInt();
+            assertEquals(Protocol.STATUS_OK, in.readByte());
+            in.skipNBytes(in.readInt() + (long) in.readInt());
+        }
+    }
+}